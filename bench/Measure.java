@@ -0,0 +1,17 @@
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+
+/** Runs Lox.main with the given arguments, then prints on stderr how long it took and how much the main thread
+ * allocated doing it. Used by run.sh, which puts the compiled interpreter on the class path.
+ * */
+public class Measure {
+    public static void main(String[] args) throws Exception {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        com.craftinginterpreters.Lox.Lox.main(args);
+        long elapsed = System.nanoTime() - start;
+        bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+        System.err.printf("%.2fs %dMB%n", elapsed / 1e9, bytes / (1024 * 1024));
+    }
+}
@@ -0,0 +1,22 @@
+#!/bin/sh
+# Finds the deepest d(n) from depth.lox that runs without a StackOverflowError on the JVM's default stack.
+# Takes the same engine flags as Lox, for example bench/depth.sh --nodes
+cd "$(dirname "$0")/.." || exit 1
+
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+javac -d "$classes" $(find src -name '*.java') || exit 1
+
+fits() {
+    { cat bench/depth.lox; echo "print d($1);"; } > "$classes/depth.lox"
+    shift
+    java -cp "$classes" com.craftinginterpreters.Lox.Lox --no-cache "$@" "$classes/depth.lox" >/dev/null 2>&1
+}
+
+low=1
+high=100000
+while [ $((high - low)) -gt 1 ]; do
+    middle=$(((low + high) / 2))
+    if fits "$middle" "$@"; then low=$middle; else high=$middle; fi
+done
+echo "$low"
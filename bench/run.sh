@@ -0,0 +1,33 @@
+#!/bin/sh
+# Runs each benchmark a few times and prints the best time and the bytes the main thread allocated in that run.
+# Every run is a fresh JVM with --no-cache, so parsing is counted too.
+# Usage: bench/run.sh [-n runs] [lox flags...] [benchmark names...]
+#   bench/run.sh --nodes fib loop
+cd "$(dirname "$0")/.." || exit 1
+
+runs=3
+if [ "$1" = "-n" ]; then runs=$2; shift 2; fi
+flags=""
+names=""
+for arg in "$@"; do
+    case "$arg" in
+        --*) flags="$flags $arg" ;;
+        *) names="$names ${arg%.lox}" ;;
+    esac
+done
+[ -z "$names" ] && names=$(ls bench/*.lox | grep -v depth.lox | sed 's|bench/\(.*\)\.lox|\1|')
+
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+javac -d "$classes" $(find src -name '*.java') || exit 1
+javac -cp "$classes" -d "$classes" bench/Measure.java || exit 1
+
+for name in $names; do
+    best=""
+    for i in $(seq "$runs"); do
+        result=$(java -cp "$classes" Measure --no-cache $flags "bench/$name.lox" 2>&1 >/dev/null | tail -1)
+        time=${result%%s *}
+        if [ -z "$best" ] || awk "BEGIN { exit !($time < ${best%%s *}) }"; then best=$result; fi
+    done
+    printf "%-10s %s\n" "$name" "$best"
+done
@@ -1,45 +1,172 @@
 package com.craftinginterpreters.Lox;
 
-public abstract class AstPrinter implements Expr.Visitor<String> {
-/*
-    String print(Expr expr){
-        // System.out.println(this);
+import java.util.List;
+
+/** Prints the syntax tree as nested s-expressions
+ * Mostly useful with --dump-ast, to see what the Optimizer left behind.
+ * */
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+
+    String print(Expr expr) {
         if (expr == null) return "";
         return expr.accept(this);
     }
 
-    public static void main(String[] args) {
-        Expr expression = new Expr.Binary(
-                new Expr.Unary(
-                        new Token(TokenType.MINUS, "-", null, 1),
-                        new Expr.Literal(123)),
-                new Token(TokenType.STAR, "*", null, 1),
-                new Expr.Grouping(
-                        new Expr.Literal(45.67)));
+    String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    String print(List<Stmt> statements) {
+        StringBuilder builder = new StringBuilder();
+        for (Stmt statement : statements) {
+            builder.append(print(statement)).append("\n");
+        }
+        return builder.toString();
+    }
+
+    // Statements
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(block");
+        for (Stmt statement : stmt.statements) {
+            builder.append(" ").append(print(statement));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        return function("fun " + stmt.name.lexeme, stmt.params, stmt.body, stmt.lazy);
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(class ").append(stmt.name.lexeme);
+        if (stmt.superclass != null) {
+            builder.append(" < ").append(print(stmt.superclass));
+        }
+        for (Stmt.Function method : stmt.methods) {
+            builder.append(" ").append(
+                    function("method " + method.name.lexeme, method.params, method.body, method.lazy));
+        }
+        for (Stmt.Function method : stmt.staticMethods) {
+            builder.append(" ").append(
+                    function("class " + method.name.lexeme, method.params, method.body, method.lazy));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        if (stmt.elseBranch == null) {
+            return "(if " + print(stmt.condition) + " " + print(stmt.thenBranch) + ")";
+        }
+        return "(if-else " + print(stmt.condition) + " " + print(stmt.thenBranch) + " " +
+                print(stmt.elseBranch) + ")";
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return "(var " + stmt.name.lexeme + ")";
+        return "(var " + stmt.name.lexeme + " = " + print(stmt.initializer) + ")";
+    }
 
-        System.out.println(new AstPrinter().print(expression));
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        if (stmt.increment == null) {
+            return "(while " + print(stmt.condition) + " " + print(stmt.body) + ")";
+        }
+        return "(for " + print(stmt.condition) + " " + print(stmt.increment) + " " + print(stmt.body) + ")";
     }
 
+    // Expressions
+
     @Override
-    public String visitTernaryExpr(Expr.Ternary expr){
+    public String visitTernaryExpr(Expr.Ternary expr) {
         return parenthesize("?:", expr.condition, expr.left, expr.right);
     }
 
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return parenthesize("= " + expr.name.lexeme, expr.value);
+    }
 
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(expr.isTailCall ? "(tail-call " : "(call ").append(print(expr.callee));
+        for (Expr argument : expr.arguments) {
+            builder.append(" ").append(print(argument));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize(". " + expr.name.lexeme, expr.object);
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("group", expr.expression);
     }
 
+    @Override
+    public String visitLambdaExpr(Expr.Lambda expr) {
+        return function("fun", expr.params, expr.body, expr.lazy);
+    }
+
     @Override
     public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) return "nil";
-        return expr.value.toString();
+        if (expr.value instanceof String) return "\"" + expr.value + "\"";
+        return Interpreter.stringify(expr.value);
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return parenthesize("=. " + expr.name.lexeme, expr.object, expr.value);
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "this";
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return "(super " + expr.method.lexeme + ")";
     }
 
     @Override
@@ -47,7 +174,29 @@ public abstract class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(expr.operator.lexeme, expr.right);
     }
 
-    private String parenthesize(String name, Expr...exprs) {
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return expr.name.lexeme;
+    }
+
+    private String function(String name, List<Token> params, List<Stmt> body, LazyBody lazy) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(").append(name).append(" (");
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) builder.append(" ");
+            builder.append(params.get(i).lexeme);
+        }
+        builder.append(")");
+        // Not parsed yet, see LazyBody
+        if (lazy != null && lazy.isPending()) builder.append(" ...");
+        for (Stmt statement : body) {
+            builder.append(" ").append(print(statement));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
 
         builder.append("(").append(name);
@@ -59,7 +208,4 @@ public abstract class AstPrinter implements Expr.Visitor<String> {
 
         return builder.toString();
     }
-
- */
 }
-
@@ -0,0 +1,14 @@
+package com.craftinginterpreters.Lox;
+
+/** A local variable that some closure captures
+ * Only these live in a Cell: the Resolver works out which variables a function uses from outside itself, and a
+ * closure takes the Cells of just those with it (its upvalues) rather than the whole chain of environments it was
+ * made in. The variable's own slot holds the same Cell, so an assignment on either side is seen by the other.
+ * */
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,39 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A compiled sequence of bytecode along with its constant pool
+ * lines runs parallel to code so runtime errors can still report where they came from
+ * */
+class Chunk {
+    byte[] code = new byte[16];
+    int[] lines = new int[16];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+    // Numbers and strings are immutable, so each distinct one only needs a single entry in the pool
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        if (value instanceof Double || value instanceof String) {
+            Integer index = constantIndex.get(value);
+            if (index != null) return index;
+            constantIndex.put(value, constants.size());
+        }
+        constants.add(value);
+        return constants.size() - 1;
+    }
+}
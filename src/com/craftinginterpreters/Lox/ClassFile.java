@@ -0,0 +1,299 @@
+package com.craftinginterpreters.Lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Just enough of a JVM class file writer for the JitCompiler
+ * Classes are written as version 49 (Java 5), the last version the verifier will check without a StackMapTable,
+ * which saves having to work out stack map frames for every branch target.
+ * */
+class ClassFile {
+    // Opcodes used by the JitCompiler
+    static final int ACONST_NULL = 0x01;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Thrown when a method gets too big for the simple encodings used here
+    static class TooLarge extends RuntimeException {
+        TooLarge(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String name;
+    private final String superName;
+    private final String[] interfaces;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName, String... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    // Constant pool
+
+    int utf8(String value) {
+        return constant("U" + value, 1, out -> out.writeUTF(value));
+    }
+
+    int classRef(String internalName) {
+        int nameIndex = utf8(internalName);
+        return constant("C" + internalName, 7, out -> out.writeShort(nameIndex));
+    }
+
+    int fieldRef(String owner, String field, String descriptor) {
+        return memberRef(9, owner, field, descriptor);
+    }
+
+    int methodRef(String owner, String method, String descriptor) {
+        return memberRef(10, owner, method, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String member, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(member);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + member + ":" + descriptor, 12, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant(tag + owner + "." + member + ":" + descriptor, tag, out -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int tag, Entry entry) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        if (poolCount >= 0xffff) throw new TooLarge("Constant pool is full.");
+        try {
+            pool.writeByte(tag);
+            entry.write(pool);
+        } catch (IOException e) {
+            // Writing to a byte array can't fail
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // Members
+
+    void field(int access, String field, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(field));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    void method(int access, String method, String descriptor, Code code) {
+        if (code.length > 0xffff) throw new TooLarge("Method is too long.");
+        code.resolveJumps();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(method));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(code.length);
+            out.write(code.bytes, 0, code.length);
+            // No exception table and no attributes
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toBytes() {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndices = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndices[i] = classRef(interfaces[i]);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndices.length);
+            for (int index : interfaceIndices) out.writeShort(index);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** The body of one method
+     * Callers pass the stack effect of each instruction so the maximum depth can be worked out as it's written.
+     * */
+    static class Code {
+        private byte[] bytes = new byte[64];
+        int length = 0;
+        private int stack = 0;
+        int maxStack = 0;
+        int maxLocals;
+
+        private final List<Integer> labels = new ArrayList<>();
+        // Pairs of (offset of the jump instruction, label it jumps to)
+        private final List<int[]> jumps = new ArrayList<>();
+
+        Code(int maxLocals) {
+            this.maxLocals = maxLocals;
+        }
+
+        void op(int opcode, int stackEffect) {
+            u1(opcode);
+            adjustStack(stackEffect);
+        }
+
+        void op(int opcode, int operand, int stackEffect) {
+            u1(opcode);
+            u2(operand);
+            adjustStack(stackEffect);
+        }
+
+        void load(int local) {
+            varOp(ALOAD, local);
+            adjustStack(1);
+        }
+
+        void store(int local) {
+            varOp(ASTORE, local);
+            adjustStack(-1);
+        }
+
+        private void varOp(int opcode, int local) {
+            if (local > 0xff) throw new TooLarge("Too many locals.");
+            if (local >= maxLocals) maxLocals = local + 1;
+            u1(opcode);
+            u1(local);
+        }
+
+        void pushInt(int value) {
+            if (value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else {
+                u1(SIPUSH);
+                u2(value);
+            }
+            adjustStack(1);
+        }
+
+        int newLabel() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        void mark(int label) {
+            labels.set(label, length);
+        }
+
+        void jump(int opcode, int label, int stackEffect) {
+            jumps.add(new int[] {length, label});
+            u1(opcode);
+            u2(0);
+            adjustStack(stackEffect);
+        }
+
+        // For the code after a GOTO, which is only reached by a jump from somewhere the last values pushed before
+        // the GOTO were never on the stack (the other branch of a conditional)
+        void endBranch(int values) {
+            adjustStack(-values);
+        }
+
+        private void resolveJumps() {
+            for (int[] jump : jumps) {
+                int offset = labels.get(jump[1]) - jump[0];
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new TooLarge("Jump is too far.");
+                }
+                bytes[jump[0] + 1] = (byte) (offset >> 8);
+                bytes[jump[0] + 2] = (byte) offset;
+            }
+        }
+
+        private void adjustStack(int effect) {
+            stack += effect;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void u1(int b) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte) b;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+    }
+}
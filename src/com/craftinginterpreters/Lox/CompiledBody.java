@@ -0,0 +1,9 @@
+package com.craftinginterpreters.Lox;
+
+/** A function body the JitCompiler has turned into JVM bytecode
+ * Takes the place of Interpreter.executeBlock for that body: the upvalues are the function's (see Cell), the receiver
+ * is 'this' for methods, and the result is the returned value (null if it ran off the end).
+ * */
+interface CompiledBody {
+    Object run(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, Object[] arguments);
+}
@@ -0,0 +1,587 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Lowers a resolved syntax tree into bytecode for the VM
+ * The Resolver has already checked the scoping rules, so all this has to do is work out where each variable lives:
+ * a stack slot in the current function, an upvalue captured from an enclosing function, or a global by name.
+ * */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER,
+        STATIC_METHOD
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    // Book-keeping for each function currently being compiled, innermost first
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, ObjFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // Slot zero holds the receiver for methods, and the callee itself for everything else
+            if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+                locals.add(new Local("this", 0));
+            } else {
+                locals.add(new Local("", 0));
+            }
+        }
+    }
+
+    private static final int MAX_SLOTS = 256;
+    private static final int MAX_CONSTANTS = 65536;
+
+    private final boolean interactive;
+    private FunctionState current = null;
+    private int line = 1;
+
+    Compiler(boolean interactive) {
+        this.interactive = interactive;
+    }
+
+    ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new ObjFunction(null), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    // Statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(interactive ? OpCode.ECHO : OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        // A local function is in scope inside its own body, so it can call itself
+        if (current.scopeDepth > 0) addLocal(stmt.name.lexeme);
+        function(stmt.name.lexeme, stmt.params, stmt.body, FunctionType.FUNCTION);
+        defineVariable(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        String className = stmt.name.lexeme;
+        if (current.scopeDepth > 0) addLocal(className);
+        emitWithShort(OpCode.CLASS, makeConstant(className));
+        defineVariable(className);
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            // The superclass stays on the stack as the 'super' local for every method to capture
+            beginScope();
+            addLocal("super");
+            namedVariable(className, stmt.name.line, false);
+            line = stmt.superclass.name.line;
+            emit(OpCode.INHERIT);
+        }
+
+        namedVariable(className, stmt.name.line, false);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) type = FunctionType.INITIALIZER;
+            function(method.name.lexeme, method.params, method.body, type);
+            emitWithShort(OpCode.METHOD, makeConstant(method.name.lexeme));
+        }
+        for (Stmt.Function method : stmt.staticMethods) {
+            function(method.name.lexeme, method.params, method.body, FunctionType.STATIC_METHOD);
+            emitWithShort(OpCode.STATIC_METHOD, makeConstant(method.name.lexeme));
+        }
+        emit(OpCode.POP);
+
+        if (stmt.superclass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER) {
+            // Initializers always hand back the instance, whatever they're asked to return
+            if (stmt.value != null) {
+                compile(stmt.value);
+                emit(OpCode.POP);
+            }
+            emitReturn();
+            return null;
+        }
+
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL);
+        }
+        line = stmt.name.line;
+        // The initializer's value is already sitting in what becomes the local's slot
+        if (current.scopeDepth > 0) addLocal(stmt.name.lexeme);
+        defineVariable(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = currentChunk().count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OpCode.POP);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    // Expressions
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.condition);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(expr.left);
+
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        emit(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        if (expr.depth == -1) {
+            line = expr.name.line;
+            emitWithShort(OpCode.SET_GLOBAL, makeConstant(expr.name.lexeme));
+        } else {
+            namedVariable(expr.name.lexeme, expr.name.line, true);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (expr.operator.type == TokenType.COMMA) {
+            compile(expr.left);
+            emit(OpCode.POP);
+            compile(expr.right);
+            return null;
+        }
+
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER: emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS: emit(OpCode.LESS); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+            case MINUS: emit(OpCode.SUBTRACT); break;
+            case SLASH: emit(OpCode.DIVIDE); break;
+            case STAR: emit(OpCode.MULTIPLY); break;
+            case PLUS: emit(OpCode.ADD); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            // Calling a property straight away skips building a bound method
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitWithShort(OpCode.INVOKE, makeConstant(get.name.lexeme));
+            emit(expr.arguments.size());
+            return null;
+        }
+
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            namedVariable("this", superExpr.keyword.line, false);
+            compileArguments(expr.arguments);
+            namedVariable("super", superExpr.keyword.line, false);
+            line = expr.paren.line;
+            emitWithShort(OpCode.SUPER_INVOKE, makeConstant(superExpr.method.lexeme));
+            emit(expr.arguments.size());
+            return null;
+        }
+
+        compile(expr.callee);
+        compileArguments(expr.arguments);
+        line = expr.paren.line;
+        emit(OpCode.CALL);
+        emit(expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitWithShort(OpCode.GET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        line = expr.line;
+        function("Lambda", expr.params, expr.body, FunctionType.FUNCTION);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value.equals(true)) {
+            emit(OpCode.TRUE);
+        } else if (expr.value.equals(false)) {
+            emit(OpCode.FALSE);
+        } else {
+            emitWithShort(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitWithShort(OpCode.SET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable("this", expr.keyword.line, false);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable("this", expr.keyword.line, false);
+        namedVariable("super", expr.keyword.line, false);
+        line = expr.method.line;
+        emitWithShort(OpCode.GET_SUPER, makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case MINUS: emit(OpCode.NEGATE); break;
+            case BANG: emit(OpCode.NOT); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == -1) {
+            line = expr.name.line;
+            emitWithShort(OpCode.GET_GLOBAL, makeConstant(expr.name.lexeme));
+        } else {
+            namedVariable(expr.name.lexeme, expr.name.line, false);
+        }
+        return null;
+    }
+
+    // Helpers
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    private void function(String name, List<Token> params, List<Stmt> body, FunctionType type) {
+        FunctionState state = new FunctionState(current, new ObjFunction(name), type);
+        current = state;
+        beginScope();
+        for (Token param : params) {
+            state.function.arity++;
+            addLocal(param.lexeme);
+        }
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+        emitReturn();
+        // No need to end the scope, the whole frame is thrown away when the function returns
+        current = state.enclosing;
+
+        state.function.upvalueCount = state.upvalues.size();
+        emitWithShort(OpCode.CLOSURE, makeConstant(state.function));
+        for (Upvalue upvalue : state.upvalues) {
+            emit(upvalue.isLocal ? 1 : 0);
+            emit(upvalue.index);
+        }
+    }
+
+    private void namedVariable(String name, int nameLine, boolean assign) {
+        line = nameLine;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emit(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL);
+            emit(arg);
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            emit(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE);
+            emit(arg);
+        } else {
+            emitWithShort(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, makeConstant(name));
+        }
+    }
+
+    private void defineVariable(String name) {
+        // Locals live wherever their value was left on the stack, so only globals need anything doing
+        if (current.scopeDepth > 0) return;
+        emitWithShort(OpCode.DEFINE_GLOBAL, makeConstant(name));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) return addUpvalue(state, upvalue, false);
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+        if (state.upvalues.size() == MAX_SLOTS) {
+            Lox.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void addLocal(String name) {
+        if (current.locals.size() == MAX_SLOTS) {
+            Lox.error(line, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emit(OpCode.CLOSE_UPVALUE);
+            } else {
+                emit(OpCode.POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // Emitting code
+
+    private Chunk currentChunk() {
+        return current.function.chunk;
+    }
+
+    private void emit(int b) {
+        currentChunk().write(b, line);
+    }
+
+    private void emitWithShort(byte op, int operand) {
+        emit(op);
+        emit((operand >> 8) & 0xff);
+        emit(operand & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emit(OpCode.GET_LOCAL);
+            emit(0);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private int emitJump(byte op) {
+        emitWithShort(op, 0xffff);
+        return currentChunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to account for the jump's own operand
+        int jump = currentChunk().count - offset - 2;
+        if (jump > 0xffff) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        currentChunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        currentChunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = currentChunk().count - loopStart + 2;
+        if (offset > 0xffff) Lox.error(line, "Loop body too large.");
+        emit((offset >> 8) & 0xff);
+        emit(offset & 0xff);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = currentChunk().addConstant(value);
+        if (constant >= MAX_CONSTANTS) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+}
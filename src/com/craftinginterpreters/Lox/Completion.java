@@ -0,0 +1,32 @@
+package com.craftinginterpreters.Lox;
+
+/** How a statement tells whatever is running it to stop and return from the function
+ * Executing a statement hands back null to carry on with the next one, or otherwise the value being returned, which
+ * is passed up through the enclosing blocks and loops to the function call. Returning nil hands back RETURN_NIL so it
+ * can't be mistaken for carrying on. A call in tail position comes back as a TailCall for the function to make once
+ * its own body is done. Anything else that needs to cut a block short (break, continue) would get a marker of its own
+ * here.
+ * */
+final class Completion {
+    static final Object RETURN_NIL = new Object();
+
+    private Completion() {}
+
+    // A call the Resolver found in tail position, with its arguments already evaluated and checked
+    static final class TailCall {
+        final LoxFunction function;
+        final LoxInstance receiver;
+        final Object[] arguments;
+
+        TailCall(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+            this.function = function;
+            this.receiver = receiver;
+            this.arguments = arguments;
+        }
+    }
+
+    // What a call returns, given what its body completed with
+    static Object returnValue(Object completion) {
+        return completion == RETURN_NIL ? null : completion;
+    }
+}
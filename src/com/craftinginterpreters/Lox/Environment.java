@@ -1,26 +1,100 @@
 package com.craftinginterpreters.Lox;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Only the global environment is keyed by name, since globals can be (re)defined at any point from the REPL.
+    // Every other environment is a frame of slots handed out by the Resolver in declaration order.
+    // Names are all interned (see Names), so the globals can be looked up by identity. Each global is in a Cell, so
+    // anything that uses it only has to look it up the once, see globalCell.
+    private final Map<String, Cell> values;
+    Object[] slots;
+    private int count = 0;
+    // The Cells of the function this belongs to, see Cell. A function's frame is where the chain of environments
+    // stops, everything from further out comes through these
+    final Cell[] upvalues;
+
+    static final Cell[] NO_UPVALUES = new Cell[0];
 
     void define(String name, Object value){
-        values.put(name, value);
+        if (values != null) {
+            Cell cell = values.get(name);
+            if (cell == null) values.put(name, new Cell(value));
+            else cell.value = value;
+            return;
+        }
+        define(value);
+    }
+
+    // Locals are defined in the same order the Resolver declared them, so the next free slot is theirs
+    void define(Object value) {
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, count * 2);
+        }
+        slots[count++] = value;
+    }
+
+    // Empties a frame so the same declarations can be defined into it again, see Interpreter.visitWhileStmt. The old
+    // values go as well, or whatever the last time round left in them couldn't be collected
+    void clear() {
+        Arrays.fill(slots, 0, count, null);
+        count = 0;
+    }
+
+    // How many locals are defined, so a block that shares this frame can drop its own again (see truncate)
+    int size() {
+        return count;
+    }
+
+    // Forgets every local after the first size, once the block that defined them is done with the frame
+    void truncate(int size) {
+        Arrays.fill(slots, size, count, null);
+        count = size;
     }
 
     Environment() {
         enclosing = null;
+        values = new IdentityHashMap<>();
+        upvalues = NO_UPVALUES;
     }
 
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        values = null;
+        slots = new Object[4];
+        upvalues = enclosing.upvalues;
+    }
+
+    // The frame for a call to a function with these upvalues
+    Environment(Cell[] upvalues) {
+        this.enclosing = null;
+        values = null;
+        slots = new Object[4];
+        this.upvalues = upvalues;
     }
 
-    Object getAt (int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt (int distance, int slot) {
+        return ancestor(distance).slots[slot];
+    }
+
+    void assignAt (int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+    // The Cells for a closure made here to take with it. The Resolver gives a function's upvalues as pairs: the depth
+    // and slot of a local from here, or Resolver.UPVALUE and the index of one of this function's own upvalues
+    Cell[] capture(int[] captures) {
+        if (captures.length == 0) return NO_UPVALUES;
+        Cell[] cells = new Cell[captures.length / 2];
+        for (int i = 0; i < cells.length; i++) {
+            int depth = captures[2 * i];
+            int slot = captures[2 * i + 1];
+            cells[i] = depth == Resolver.UPVALUE ? upvalues[slot] : (Cell) getAt(depth, slot);
+        }
+        return cells;
     }
 
     Environment ancestor (int distance) {
@@ -34,29 +108,27 @@ public class Environment {
         return environment;
     }
 
+    // get and assign are only used for globals, anything local is accessed through its slot
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        return globalCell(name).value;
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+        Cell cell = values.get(name.lexeme);
+        if (cell == null) {
+            throw new RuntimeError(name,
+                    "Undefined variable'" + name.lexeme + "'.");
         }
+        cell.value = value;
+    }
 
-        throw new RuntimeError(name,
-                "Undefined variable'" + name.lexeme + "'.");
+    // The Cell a global lives in, for a use of it to hang on to. A global keeps the same Cell for good once it's
+    // defined, defining it again from the REPL only changes what's in it. An undefined one is looked for again next
+    // time, since it might have been defined by then
+    Cell globalCell(Token name) {
+        Cell cell = values.get(name.lexeme);
+        if (cell == null) throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        return cell;
     }
 
 }
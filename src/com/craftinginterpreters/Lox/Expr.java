@@ -10,6 +10,7 @@ abstract class Expr {
         R visitCallExpr(Call expr);
         R visitGetExpr(Get expr);
         R visitGroupingExpr(Grouping expr);
+        R visitLambdaExpr(Lambda expr);
         R visitLiteralExpr(Literal expr);
         R visitLogicalExpr(Logical expr);
         R visitSetExpr(Set expr);
@@ -17,7 +18,6 @@ abstract class Expr {
         R visitSuperExpr(Super expr);
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
-        R visitLambdaExpr(Lambda expr);
     }
  static class Ternary extends Expr {
     Ternary(Expr condition, Expr left, Expr right) {
@@ -46,6 +46,13 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    // Set by the Resolver: depth -1 is a global, Resolver.UPVALUE one of the function's upvalues
+    int depth = -1;
+    int slot;
+    boolean captured;
+    // The global's Cell, once it's been looked up the first time. See Environment.globalCell
+    Cell global;
  }
  static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -61,6 +68,9 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    // Sure to come out a number, set by the Optimizer. See Interpreter.isArithmetic
+    boolean arithmetic;
  }
  static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -76,6 +86,9 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    // Filled in after parsing
+    boolean isTailCall;
  }
  static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -89,6 +102,9 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    // Filled in after parsing
+    PropertyCache cache = new PropertyCache();
  }
  static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -115,6 +131,10 @@ abstract class Expr {
     final int line;
     final List<Token> params;
     final List<Stmt> body;
+
+    // Filled in after parsing
+    LazyBody lazy;
+    Stmt.Function function;
  }
  static class Literal extends Expr {
     Literal(Object value) {
@@ -156,6 +176,9 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    // Filled in after parsing
+    PropertyCache cache = new PropertyCache();
  }
  static class This extends Expr {
     This(Token keyword) {
@@ -167,6 +190,11 @@ abstract class Expr {
         }
 
     final Token keyword;
+
+    // Set by the Resolver: depth -1 is a global, Resolver.UPVALUE one of the function's upvalues
+    int depth = -1;
+    int slot;
+    boolean captured;
  }
  static class Super extends Expr {
     Super(Token keyword, Token method) {
@@ -180,6 +208,13 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    // Set by the Resolver: depth -1 is a global, Resolver.UPVALUE one of the function's upvalues
+    int depth = -1;
+    int slot;
+    int thisDepth;
+    int thisSlot;
+    boolean thisCaptured;
  }
  static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -193,6 +228,9 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+
+    // Sure to come out a number, set by the Optimizer. See Interpreter.isArithmetic
+    boolean arithmetic;
  }
  static class Variable extends Expr {
     Variable(Token name) {
@@ -204,6 +242,13 @@ abstract class Expr {
         }
 
     final Token name;
+
+    // Set by the Resolver: depth -1 is a global, Resolver.UPVALUE one of the function's upvalues
+    int depth = -1;
+    int slot;
+    boolean captured;
+    // The global's Cell, once it's been looked up the first time. See Environment.globalCell
+    Cell global;
  }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,807 @@
+package com.craftinginterpreters.Lox;
+
+/** Executable expression nodes built once from the resolved tree by the NodeCompiler
+ * Each node already knows exactly what it does (which operator, which slot, which name), so evaluating one is a
+ * single virtual call with no visitor dispatch or switching on token types.
+ *
+ * Nodes can also be asked for their value as a raw double or as a condition. Operators use these on their operands so
+ * numbers and booleans aren't boxed just to be taken apart again by the node above. By default they fall back to
+ * evaluate(), and evaluateDouble() throws UnexpectedResult with the value it got instead if it wasn't a number.
+ * */
+abstract class ExprNode {
+    // What an operator that specializes on its operand types has seen so far
+    static final int UNINITIALIZED = 0;
+    static final int NUMBERS = 1;
+    static final int STRINGS = 2;
+    static final int GENERIC = 3;
+
+    static class UnexpectedResult extends Exception {
+        final Object value;
+
+        UnexpectedResult(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    abstract Object evaluate(Environment frame);
+
+    double evaluateDouble(Environment frame) throws UnexpectedResult {
+        return number(evaluate(frame));
+    }
+
+    static double number(Object value) throws UnexpectedResult {
+        if (value instanceof Double) return (double) value;
+        throw new UnexpectedResult(value);
+    }
+
+    boolean evaluateCondition(Environment frame) {
+        return Interpreter.isTruthy(evaluate(frame));
+    }
+
+    static class Constant extends ExprNode {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return value;
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) throws UnexpectedResult {
+            return number(value);
+        }
+    }
+
+    // Variables
+
+    static class LocalGet extends ExprNode {
+        private final int slot;
+
+        LocalGet(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return frame.slots[slot];
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) throws UnexpectedResult {
+            return number(frame.slots[slot]);
+        }
+    }
+
+    static class EnclosingGet extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        EnclosingGet(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return frame.ancestor(depth).slots[slot];
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) throws UnexpectedResult {
+            return number(frame.ancestor(depth).slots[slot]);
+        }
+    }
+
+    // A local that a closure captures, so its slot holds a Cell
+    static class CellGet extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        CellGet(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return ((Cell) frame.ancestor(depth).slots[slot]).value;
+        }
+    }
+
+    static class UpvalueGet extends ExprNode {
+        private final int index;
+
+        UpvalueGet(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return frame.upvalues[index].value;
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) throws UnexpectedResult {
+            return number(frame.upvalues[index].value);
+        }
+    }
+
+    static class GlobalGet extends ExprNode {
+        private final Environment globals;
+        private final Token name;
+        // Only looked up by name the first time, see Environment.globalCell
+        private Cell cell;
+
+        GlobalGet(Environment globals, Token name) {
+            this.globals = globals;
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Cell global = cell;
+            if (global == null) cell = global = globals.globalCell(name);
+            return global.value;
+        }
+    }
+
+    static class LocalSet extends ExprNode {
+        private final int depth;
+        private final int slot;
+        private final ExprNode value;
+
+        LocalSet(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object result = value.evaluate(frame);
+            frame.ancestor(depth).slots[slot] = result;
+            return result;
+        }
+    }
+
+    static class CellSet extends ExprNode {
+        private final int depth;
+        private final int slot;
+        private final ExprNode value;
+
+        CellSet(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object result = value.evaluate(frame);
+            ((Cell) frame.ancestor(depth).slots[slot]).value = result;
+            return result;
+        }
+    }
+
+    static class UpvalueSet extends ExprNode {
+        private final int index;
+        private final ExprNode value;
+
+        UpvalueSet(int index, ExprNode value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object result = value.evaluate(frame);
+            frame.upvalues[index].value = result;
+            return result;
+        }
+    }
+
+    static class GlobalSet extends ExprNode {
+        private final Environment globals;
+        private final Token name;
+        private final ExprNode value;
+        private Cell cell;
+
+        GlobalSet(Environment globals, Token name, ExprNode value) {
+            this.globals = globals;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object result = value.evaluate(frame);
+            if (cell == null) {
+                globals.assign(name, result);
+                cell = globals.globalCell(name);
+            } else {
+                cell.value = result;
+            }
+            return result;
+        }
+    }
+
+    // Operators
+    // Arithmetic and comparisons only ever work on numbers, so they always ask their operands for a raw double and
+    // never box anything in between. + and == can legitimately see other types, so they watch what they're given and
+    // settle into whichever case they keep seeing, dropping back to the general case for good the first time they
+    // see something else.
+
+    abstract static class Binary extends ExprNode {
+        final Token operator;
+        final ExprNode left;
+        final ExprNode right;
+
+        Binary(Token operator, ExprNode left, ExprNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        // Operands for the operators that only take numbers. Both sides are still evaluated before complaining,
+        // like the Interpreter does
+        double leftNumber(Environment frame) {
+            try {
+                return left.evaluateDouble(frame);
+            } catch (UnexpectedResult e) {
+                right.evaluate(frame);
+                throw numbersError();
+            }
+        }
+
+        double rightNumber(Environment frame) {
+            try {
+                return right.evaluateDouble(frame);
+            } catch (UnexpectedResult e) {
+                throw numbersError();
+            }
+        }
+
+        RuntimeError numbersError() {
+            return new RuntimeError(operator, "Operands must be numbers.");
+        }
+    }
+
+    abstract static class Arithmetic extends Binary {
+        Arithmetic(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return evaluateDouble(frame);
+        }
+
+        @Override
+        abstract double evaluateDouble(Environment frame);
+    }
+
+    abstract static class Comparison extends Binary {
+        Comparison(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return evaluateCondition(frame);
+        }
+
+        @Override
+        abstract boolean evaluateCondition(Environment frame);
+    }
+
+    static class Add extends Binary {
+        private int state = UNINITIALIZED;
+
+        Add(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            if (state == NUMBERS) {
+                try {
+                    return evaluateNumbers(frame);
+                } catch (UnexpectedResult e) {
+                    return e.value;
+                }
+            }
+
+            Object a = left.evaluate(frame);
+            Object b = right.evaluate(frame);
+            if (state == STRINGS) {
+                if (Rope.isString(a) && Rope.isString(b)) return Rope.concat(a, b);
+                return deoptimize(a, b);
+            }
+            if (state == UNINITIALIZED) {
+                if (a instanceof Double && b instanceof Double) state = NUMBERS;
+                else if (Rope.isString(a) && Rope.isString(b)) state = STRINGS;
+                else state = GENERIC;
+            }
+            return add(a, b);
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) throws UnexpectedResult {
+            if (state == NUMBERS) return evaluateNumbers(frame);
+            return super.evaluateDouble(frame);
+        }
+
+        private double evaluateNumbers(Environment frame) throws UnexpectedResult {
+            double a;
+            try {
+                a = left.evaluateDouble(frame);
+            } catch (UnexpectedResult e) {
+                throw new UnexpectedResult(deoptimize(e.value, right.evaluate(frame)));
+            }
+            try {
+                return a + right.evaluateDouble(frame);
+            } catch (UnexpectedResult e) {
+                throw new UnexpectedResult(deoptimize(a, e.value));
+            }
+        }
+
+        private Object deoptimize(Object a, Object b) {
+            state = GENERIC;
+            return add(a, b);
+        }
+
+        private Object add(Object a, Object b) {
+            if (a instanceof Double && b instanceof Double) {
+                return (double) a + (double) b;
+            }
+            if (Rope.isString(a) && Rope.isString(b)) {
+                return Rope.concat(a, b);
+            }
+            throw new RuntimeError(operator,
+                    "Operands must be two numbers or two strings");
+        }
+    }
+
+    static class Subtract extends Arithmetic {
+        Subtract(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) {
+            double a = leftNumber(frame);
+            return a - rightNumber(frame);
+        }
+    }
+
+    static class Multiply extends Arithmetic {
+        Multiply(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) {
+            double a = leftNumber(frame);
+            return a * rightNumber(frame);
+        }
+    }
+
+    static class Divide extends Arithmetic {
+        Divide(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) {
+            double a = leftNumber(frame);
+            return a / rightNumber(frame);
+        }
+    }
+
+    static class Less extends Comparison {
+        Less(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            double a = leftNumber(frame);
+            return a < rightNumber(frame);
+        }
+    }
+
+    static class LessEqual extends Comparison {
+        LessEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            double a = leftNumber(frame);
+            return a <= rightNumber(frame);
+        }
+    }
+
+    static class Greater extends Comparison {
+        Greater(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            double a = leftNumber(frame);
+            return a > rightNumber(frame);
+        }
+    }
+
+    static class GreaterEqual extends Comparison {
+        GreaterEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            double a = leftNumber(frame);
+            return a >= rightNumber(frame);
+        }
+    }
+
+    static class Equal extends Binary {
+        private int state = UNINITIALIZED;
+
+        Equal(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return evaluateCondition(frame);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            if (state == NUMBERS) {
+                double a;
+                try {
+                    a = left.evaluateDouble(frame);
+                } catch (UnexpectedResult e) {
+                    return deoptimize(e.value, right.evaluate(frame));
+                }
+                double b;
+                try {
+                    b = right.evaluateDouble(frame);
+                } catch (UnexpectedResult e) {
+                    return deoptimize(a, e.value);
+                }
+                // The same test Double.equals makes, so NaN and -0 behave as they do in isEqual
+                return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+            }
+
+            Object a = left.evaluate(frame);
+            Object b = right.evaluate(frame);
+            if (state == UNINITIALIZED) {
+                state = a instanceof Double && b instanceof Double ? NUMBERS : GENERIC;
+            }
+            return Interpreter.isEqual(a, b);
+        }
+
+        private boolean deoptimize(Object a, Object b) {
+            state = GENERIC;
+            return Interpreter.isEqual(a, b);
+        }
+    }
+
+    static class NotEqual extends Equal {
+        NotEqual(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            return !super.evaluateCondition(frame);
+        }
+    }
+
+    static class Comma extends Binary {
+        Comma(Token operator, ExprNode left, ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            left.evaluate(frame);
+            return right.evaluate(frame);
+        }
+    }
+
+    static class Negate extends ExprNode {
+        private final Token operator;
+        private final ExprNode right;
+
+        Negate(Token operator, ExprNode right) {
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return evaluateDouble(frame);
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) {
+            try {
+                return -right.evaluateDouble(frame);
+            } catch (UnexpectedResult e) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+        }
+    }
+
+    static class Not extends ExprNode {
+        private final ExprNode right;
+
+        Not(ExprNode right) {
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return evaluateCondition(frame);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            return !right.evaluateCondition(frame);
+        }
+    }
+
+    // As a condition only the truthiness of 'and' and 'or' matters, not which side they evaluate to
+
+    static class And extends ExprNode {
+        private final ExprNode left;
+        private final ExprNode right;
+
+        And(ExprNode left, ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object value = left.evaluate(frame);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(frame);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            return left.evaluateCondition(frame) && right.evaluateCondition(frame);
+        }
+    }
+
+    static class Or extends ExprNode {
+        private final ExprNode left;
+        private final ExprNode right;
+
+        Or(ExprNode left, ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object value = left.evaluate(frame);
+            if (Interpreter.isTruthy(value)) return value;
+            return right.evaluate(frame);
+        }
+
+        @Override
+        boolean evaluateCondition(Environment frame) {
+            return left.evaluateCondition(frame) || right.evaluateCondition(frame);
+        }
+    }
+
+    static class Ternary extends ExprNode {
+        private final ExprNode condition;
+        private final ExprNode left;
+        private final ExprNode right;
+
+        Ternary(ExprNode condition, ExprNode left, ExprNode right) {
+            this.condition = condition;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            if (condition.evaluateCondition(frame)) return left.evaluate(frame);
+            return right.evaluate(frame);
+        }
+
+        @Override
+        double evaluateDouble(Environment frame) throws UnexpectedResult {
+            if (condition.evaluateCondition(frame)) return left.evaluateDouble(frame);
+            return right.evaluateDouble(frame);
+        }
+    }
+
+    // Calls and objects
+
+    static class Call extends ExprNode {
+        private final Interpreter interpreter;
+        private final Token paren;
+        private final ExprNode callee;
+        private final ExprNode[] arguments;
+        private final boolean isTailCall;
+
+        Call(Interpreter interpreter, Token paren, ExprNode callee, ExprNode[] arguments, boolean isTailCall) {
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.callee = callee;
+            this.arguments = arguments;
+            this.isTailCall = isTailCall;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object function = callee.evaluate(frame);
+
+            int count = arguments.length;
+            if (count > 3 || isTailCall) {
+                Object[] values = evaluateAll(arguments, frame);
+                if (isTailCall) return interpreter.tailCall(null, function, values, paren);
+                return interpreter.call(function, values, paren);
+            }
+            Object a = count > 0 ? arguments[0].evaluate(frame) : null;
+            Object b = count > 1 ? arguments[1].evaluate(frame) : null;
+            Object c = count > 2 ? arguments[2].evaluate(frame) : null;
+            return interpreter.call(function, count, a, b, c, paren);
+        }
+    }
+
+    static Object[] evaluateAll(ExprNode[] nodes, Environment frame) {
+        Object[] values = new Object[nodes.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = nodes[i].evaluate(frame);
+        }
+        return values;
+    }
+
+    // `object.name(...)`, calling a method without binding it first
+    static class Invoke extends ExprNode {
+        private final Interpreter interpreter;
+        private final Token paren;
+        private final ExprNode object;
+        private final Token name;
+        private final PropertyCache cache;
+        private final ExprNode[] arguments;
+        private final boolean isTailCall;
+
+        Invoke(Interpreter interpreter, Token paren, ExprNode object, Token name, PropertyCache cache,
+               ExprNode[] arguments, boolean isTailCall) {
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.object = object;
+            this.name = name;
+            this.cache = cache;
+            this.arguments = arguments;
+            this.isTailCall = isTailCall;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object value = object.evaluate(frame);
+            if (!(value instanceof LoxInstance)) {
+                throw new RuntimeError(name,
+                        "Only instances have properties.");
+            }
+            LoxInstance instance = (LoxInstance) value;
+            Object callee = cache.getForCall(instance, name);
+
+            int count = arguments.length;
+            if (count > 3 || isTailCall) {
+                Object[] values = evaluateAll(arguments, frame);
+                if (isTailCall) return interpreter.tailCall(instance, callee, values, paren);
+                return interpreter.invoke(instance, callee, values, paren);
+            }
+            Object a = count > 0 ? arguments[0].evaluate(frame) : null;
+            Object b = count > 1 ? arguments[1].evaluate(frame) : null;
+            Object c = count > 2 ? arguments[2].evaluate(frame) : null;
+            return interpreter.invoke(instance, callee, count, a, b, c, paren);
+        }
+    }
+
+    static class Get extends ExprNode {
+        private final ExprNode object;
+        private final Token name;
+        private final PropertyCache cache;
+
+        Get(ExprNode object, Token name, PropertyCache cache) {
+            this.object = object;
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object value = object.evaluate(frame);
+            if (value instanceof LoxInstance) {
+                return cache.get((LoxInstance) value, name);
+            }
+            throw new RuntimeError(name,
+                    "Only instances have properties.");
+        }
+    }
+
+    static class Set extends ExprNode {
+        private final ExprNode object;
+        private final Token name;
+        private final ExprNode value;
+        private final PropertyCache cache;
+
+        Set(ExprNode object, Token name, ExprNode value, PropertyCache cache) {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+            this.cache = cache;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            Object target = object.evaluate(frame);
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+            Object result = value.evaluate(frame);
+            cache.set((LoxInstance) target, name, result);
+            return result;
+        }
+    }
+
+    static class Super extends ExprNode {
+        // Reading 'super' and 'this', wherever the Resolver found them
+        private final ExprNode superclass;
+        private final ExprNode object;
+        private final Token method;
+
+        Super(ExprNode superclass, ExprNode object, Token method) {
+            this.superclass = superclass;
+            this.object = object;
+            this.method = method;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            LoxClass superclass = (LoxClass) this.superclass.evaluate(frame);
+            LoxInstance object = (LoxInstance) this.object.evaluate(frame);
+
+            LoxFunction function = superclass.findMethod(method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method,
+                        "Undefined property '" + method.lexeme + "'.");
+            }
+            return function.bind(object);
+        }
+    }
+
+    static class Lambda extends ExprNode {
+        private final Stmt.Function declaration;
+        private final StmtNode[] body;
+
+        Lambda(Stmt.Function declaration, StmtNode[] body) {
+            this.declaration = declaration;
+            this.body = body;
+        }
+
+        @Override
+        Object evaluate(Environment frame) {
+            return new NodeFunction(declaration, body, frame.capture(declaration.upvalues), false);
+        }
+    }
+}
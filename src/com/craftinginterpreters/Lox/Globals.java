@@ -2,8 +2,10 @@ package com.craftinginterpreters.Lox;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.io.IOException;
+import java.util.Map;
 import java.util.Random.*;
 // import java.lang.Math.*;
 
@@ -12,25 +14,47 @@ import java.util.Random.*;
 public class Globals {
     public static void define(Interpreter interpreter) {
         // Define all of the builtin functions
-        interpreter.globals.define("clock", clock);
-        interpreter.globals.define("abs", abs);
-        interpreter.globals.define("assert", Assert);
-        interpreter.globals.define("exit", Exit);
+        for (Map.Entry<String, LoxCallable> entry : natives.entrySet()) {
+            interpreter.globals.define(entry.getKey(), entry.getValue());
+        }
     }
 
     // This is where all of the items will be defined, along with explanations
 
     // Builtin functions
 
-    // Clock: returns time between invocations
-    private static LoxCallable clock = new LoxCallable() {
+    // Natives take a fixed number of arguments, so they're written against the matching LoxCallable entry point and
+    // these fill in the array version
+    private abstract static class Native0 implements LoxCallable {
+        @Override
+        public int arity() { return 0; }
+
         @Override
-        public int arity() {
-            return 0;
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return call0(interpreter);
         }
 
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
+        public abstract Object call0(Interpreter interpreter);
+    }
+
+    private abstract static class Native1 implements LoxCallable {
+        @Override
+        public int arity() { return 1; }
+
+        @Override
+        public Object call(Interpreter interpreter, Object[] arguments) {
+            return call1(interpreter, arguments[0]);
+        }
+
+        @Override
+        public abstract Object call1(Interpreter interpreter, Object argument);
+    }
+
+    // Clock: returns time between invocations
+    private static LoxCallable clock = new Native0() {
+        @Override
+        public Object call0(Interpreter interpreter) {
             return (double) System.currentTimeMillis() / 1000.0;
         }
 
@@ -39,14 +63,11 @@ public class Globals {
     };
 
     // Abs: return abs value of X
-    private static LoxCallable abs = new LoxCallable() {
-        @Override
-        public int arity() { return 1; }
-
+    private static LoxCallable abs = new Native1() {
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
-            if (arguments.get(0) instanceof Double)
-                return Math.abs((double) arguments.get(0));
+        public Object call1(Interpreter interpreter, Object x) {
+            if (x instanceof Double)
+                return Math.abs((double) x);
             throw new NativeFunctionError("abs(x) argument must be a number.");
         }
         @Override
@@ -55,35 +76,23 @@ public class Globals {
 
 
     // Assertion
-    private static LoxCallable Assert = new LoxCallable() {
-        @Override
-        public int arity() {
-            return 1;
-        }
-
+    private static LoxCallable Assert = new Native1() {
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
-            Object condition = arguments.get(0);
-
+        public Object call1(Interpreter interpreter, Object condition) {
             if (!(condition instanceof Boolean))
                 throw new NativeFunctionError("assert(condition) argument must evaluate to a boolean.");
 
-            if (arguments.get(0) instanceof Boolean && arguments.get(0) == Boolean.FALSE)
+            if (condition == Boolean.FALSE)
                 throw new NativeFunctionError("Assert failed.");
             else return null;
 
         }
     };
 
-    private static LoxCallable Exit = new LoxCallable() {
-        @Override
-        public int arity() {
-            return 1;
-        }
-
+    private static LoxCallable Exit = new Native1() {
         @Override
-        public Object call(Interpreter interpreter, List<Object> arguments) {
-            Double exitCode = (Double) arguments.get(0);
+        public Object call1(Interpreter interpreter, Object code) {
+            Double exitCode = (Double) code;
             System.out.println("Exiting with code " + exitCode.intValue());
             System.exit(exitCode.intValue());
             return null;
@@ -93,6 +102,17 @@ public class Globals {
         public String toString() {return "<Native function 'exit'>";}
     };
 
+    // Every builtin by the name it's defined under, shared by the Interpreter and the VM
+    // This has to come after the functions themselves, or they'd still be null when it's filled in
+    static final Map<String, LoxCallable> natives = new LinkedHashMap<>();
+
+    static {
+        natives.put("clock", clock);
+        natives.put("abs", abs);
+        natives.put("assert", Assert);
+        natives.put("exit", Exit);
+    }
+
     // input: Prompts user for info
     /* private static LoxCallable Input = new LoxCallable() {
         @Override
@@ -0,0 +1,351 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Moves arithmetic that can't change from one time round a loop to the next out of the loop
+ * Each such expression gets a variable and becomes `$loop0 or ($loop0 = expr)`, so it's still first worked out (and
+ * fails, if it's going to) exactly where it was, but only the once. Numbers and strings are always truthy, so the
+ * `or` only ever falls through the first time. The variables are declared in a block wrapped round the loop, so
+ * they're locals of whatever scope the loop is in and start out nil each time the loop is run from the top.
+ *
+ * Runs between the Parser and the Resolver, so the Resolver hands the new variables their slots along with
+ * everything else and nothing has to be resolved twice. That means working out for itself which names are locals:
+ * it keeps the names declared in each scope, the same way round the Resolver will.
+ * */
+class Hoister implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // Every name assigned to anywhere in the program. A variable that isn't in here never changes once declared
+    private final Set<String> assigned;
+    // The names declared so far in each block and function we're inside of, innermost last. Globals aren't in here
+    private final List<Set<String>> scopes = new ArrayList<>();
+    // The first scope that's inside the innermost loop, or -1 outside of any loop
+    private int loop = -1;
+    // The variables for the loop being hoisted from
+    private List<Stmt> temporaries = new ArrayList<>();
+    private int hoisted = 0;
+
+    Hoister(Set<String> assigned) {
+        this.assigned = assigned;
+    }
+
+    List<Stmt> hoist(List<Stmt> statements) {
+        return hoistStatements(statements);
+    }
+
+    private List<Stmt> hoistStatements(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt hoisted = hoist(statement);
+            result.add(hoisted);
+            changed |= hoisted != statement;
+        }
+        return changed ? result : statements;
+    }
+
+    private Stmt hoist(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr hoist(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private List<Expr> hoistExpressions(List<Expr> exprs) {
+        List<Expr> result = new ArrayList<>(exprs.size());
+        boolean changed = false;
+        for (Expr expr : exprs) {
+            Expr hoisted = hoist(expr);
+            result.add(hoisted);
+            changed |= hoisted != expr;
+        }
+        return changed ? result : exprs;
+    }
+
+    private void declare(Token name) {
+        if (!scopes.isEmpty()) scopes.get(scopes.size() - 1).add(name.lexeme);
+    }
+
+    // Statements
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashSet<>());
+        List<Stmt> statements = hoistStatements(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = hoist(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name);
+        return function(stmt);
+    }
+
+    private Stmt.Function function(Stmt.Function stmt) {
+        // --lazy hasn't parsed the body yet, so there's nothing to hoist from
+        if (stmt.lazy != null) return stmt;
+        List<Stmt> body = functionBody(stmt.params, stmt.body);
+        if (body == stmt.body) return stmt;
+        return new Stmt.Function(stmt.name, stmt.params, body);
+    }
+
+    private List<Stmt> functionBody(List<Token> params, List<Stmt> body) {
+        Set<String> scope = new HashSet<>();
+        for (Token param : params) scope.add(param.lexeme);
+        scopes.add(scope);
+        // The body runs when it's called rather than each time round any loop it's declared in
+        int enclosingLoop = loop;
+        loop = -1;
+        List<Stmt> result = hoistStatements(body);
+        loop = enclosingLoop;
+        scopes.remove(scopes.size() - 1);
+        return result;
+    }
+
+    private List<Stmt.Function> functions(List<Stmt.Function> functions) {
+        List<Stmt.Function> result = new ArrayList<>(functions.size());
+        boolean changed = false;
+        for (Stmt.Function function : functions) {
+            Stmt.Function hoisted = function(function);
+            result.add(hoisted);
+            changed |= hoisted != function;
+        }
+        return changed ? result : functions;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name);
+        List<Stmt.Function> methods = functions(stmt.methods);
+        List<Stmt.Function> staticMethods = functions(stmt.staticMethods);
+        if (methods == stmt.methods && staticMethods == stmt.staticMethods) return stmt;
+        return new Stmt.Class(stmt.name, stmt.superclass, methods, staticMethods);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = hoist(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = hoist(stmt.condition);
+        Stmt thenBranch = hoist(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : hoist(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = hoist(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = stmt.initializer == null ? null : hoist(stmt.initializer);
+        declare(stmt.name);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        int enclosingLoop = loop;
+        List<Stmt> enclosingTemporaries = temporaries;
+        loop = scopes.size();
+        temporaries = new ArrayList<>();
+
+        Expr condition = hoist(stmt.condition);
+        Stmt body = hoist(stmt.body);
+        Expr increment = stmt.increment == null ? null : hoist(stmt.increment);
+        List<Stmt> declarations = temporaries;
+
+        loop = enclosingLoop;
+        temporaries = enclosingTemporaries;
+
+        Stmt.While result = stmt;
+        if (condition != stmt.condition || body != stmt.body || increment != stmt.increment) {
+            result = new Stmt.While(condition, body, increment);
+        }
+        if (declarations.isEmpty()) return result;
+        List<Stmt> statements = new ArrayList<>(declarations);
+        statements.add(result);
+        return new Stmt.Block(statements);
+    }
+
+    // Arithmetic on locals declared outside the loop that nothing changes. Arithmetic on literals alone is left for
+    // the Optimizer to fold
+    private boolean isInvariant(Expr expr) {
+        return isArithmeticOnInvariants(expr) && mentionsVariable(expr);
+    }
+
+    private boolean isArithmeticOnInvariants(Expr expr) {
+        if (expr instanceof Expr.Literal) return true;
+        if (expr instanceof Expr.Grouping) return isArithmeticOnInvariants(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Variable) {
+            String name = ((Expr.Variable) expr).name.lexeme;
+            if (assigned.contains(name)) return false;
+            // The innermost scope to have declared it so far is the one the Resolver will find it in
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                if (scopes.get(i).contains(name)) return i < loop;
+            }
+            // A global, which anything might have defined again
+            return false;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return isArithmetic(binary.operator.type) && isArithmeticOnInvariants(binary.left)
+                    && isArithmeticOnInvariants(binary.right);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.operator.type == TokenType.MINUS && isArithmeticOnInvariants(unary.right);
+        }
+        return false;
+    }
+
+    private boolean mentionsVariable(Expr expr) {
+        if (expr instanceof Expr.Variable) return true;
+        if (expr instanceof Expr.Grouping) return mentionsVariable(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Binary) {
+            return mentionsVariable(((Expr.Binary) expr).left) || mentionsVariable(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Unary) return mentionsVariable(((Expr.Unary) expr).right);
+        return false;
+    }
+
+    private boolean isArithmetic(TokenType operator) {
+        return operator == TokenType.PLUS || operator == TokenType.MINUS
+                || operator == TokenType.STAR || operator == TokenType.SLASH;
+    }
+
+    private Expr hoist(Expr expr, Token operator) {
+        Token name = new Token(TokenType.IDENTIFIER, Names.intern("$loop" + hoisted++), null,
+                operator.line);
+        temporaries.add(new Stmt.Var(name, null));
+        return new Expr.Logical(new Expr.Variable(name), new Token(TokenType.OR, "or", null, operator.line),
+                new Expr.Assign(name, expr));
+    }
+
+    // Expressions
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = hoist(expr.condition);
+        Expr left = hoist(expr.left);
+        Expr right = hoist(expr.right);
+        if (condition == expr.condition && left == expr.left && right == expr.right) return expr;
+        return new Expr.Ternary(condition, left, right);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = hoist(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        if (loop != -1 && isInvariant(expr)) return hoist(expr, expr.operator);
+
+        Expr left = hoist(expr.left);
+        Expr right = hoist(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = hoist(expr.callee);
+        List<Expr> arguments = hoistExpressions(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = hoist(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = hoist(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        if (expr.lazy != null) return expr;
+        List<Stmt> body = functionBody(expr.params, expr.body);
+        if (body == expr.body) return expr;
+        return new Expr.Lambda(expr.line, expr.params, body);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = hoist(expr.left);
+        Expr right = hoist(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = hoist(expr.object);
+        Expr value = hoist(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        if (loop != -1 && isInvariant(expr)) return hoist(expr, expr.operator);
+
+        Expr right = hoist(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
@@ -1,25 +1,31 @@
 package com.craftinginterpreters.Lox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     final Environment globals = new Environment();
     // This 'copies' the values, since the original is final
     private Environment environment = globals;
-    /*locals is a {Expr -> int} mapping
+    /* Variables, assignments, 'this' and 'super' carry a depth set by the Resolver
     * In which case, this describe the number of steps you have to go up to the environment stack to
-    * access the appropriate variables
-    * thus in `{var x = 1;
-    *       {fun f(y) {return x + y;}}
+    * access the appropriate variables, along with the slot in that environment
+    * thus in `fun g(x) {
+    *       {var y = 2; print x + y;}
     *   }`
-    *  in the function body x will be 1 up, y will be zero (it's not implemented as such) and any global statements
-    * would be 2
+    *  in the block y will be zero up and x 1 up, and anything global is -1 and looked up by name.
+    *  The environments stop at the function, so in `{var x = 1; fun f(y) {return x + y;}}` x is Resolver.UPVALUE
+    *  instead: one of the Cells f was made with, see Cell. A captured variable's own slot holds its Cell too
     * */
-    private final Map<Expr, Integer> locals = new HashMap<>();
     public boolean interactive_mode = false;
+    // --low-alloc: arithmetic on arithmetic is worked out on raw doubles and only the result at the top is boxed, from
+    // Numbers' shared boxes where it can be. Off by default, it only pays off for long chains of arithmetic
+    boolean lowAlloc = false;
+    // --stats: how many times a block ran in the frame around it rather than getting an environment of its own. See
+    // Resolver.visitBlockStmt. Only counted with --stats, so it costs nothing otherwise
+    boolean stats = false;
+    long sharedBlocks = 0;
 
     Interpreter() {
         Globals.define(this);
@@ -39,32 +45,29 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private Void execute(Stmt stmt){
-        stmt.accept(this);
-        return null;
-    }
-
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    // Statements hand back how they completed rather than throwing to return, see Completion
+    private Object execute(Stmt stmt){
+        return stmt.accept(this);
     }
 
 
-
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Object executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Object completion = execute(statement);
+                if (completion != null) return completion;
             }
+            return null;
         } finally {
             this.environment = previous;
         }
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Object visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -74,23 +77,29 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        // A method that uses the class's name captures it, so its Cell has to be there before they are made
+        Cell cell = null;
+        if (stmt.captured) {
+            cell = new Cell(null);
+            environment.define(cell);
+        }
 
         if (stmt.superclass != null) {
+            // Only ever captured, by the methods that use it
             environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment.define(new Cell(superclass));
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method: stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment,
+            LoxFunction function = new LoxFunction(method, environment.capture(method.upvalues),
                     method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme, function);
         }
 
         Map<String, LoxFunction> staticMethods = new HashMap<>();
         for (Stmt.Function method : stmt.staticMethods) {
-            LoxFunction function = new LoxFunction(method, environment, false);
+            LoxFunction function = new LoxFunction(method, environment.capture(method.upvalues), false);
             staticMethods.put(method.name.lexeme, function);
         }
 
@@ -100,19 +109,39 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             environment = environment.enclosing;
         }
 
-        environment.assign(stmt.name, klass);
+        // Otherwise defined once the class is built: methods only look the name up when called, and this keeps
+        // the class in the slot the Resolver gave it
+        if (cell != null) cell.value = klass;
+        else environment.define(stmt.name.lexeme, klass);
         return null;
     }
 
     //
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.sharesFrame) return executeBlock(stmt.statements, new Environment(environment));
+
+        if (stats) sharedBlocks++;
+        int size = environment.size();
+        Object completion = null;
+        for (Stmt statement : stmt.statements) {
+            completion = execute(statement);
+            if (completion != null) break;
+        }
+        environment.truncate(size);
+        return completion;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
+        if (stmt.captured) {
+            // In its Cell before the initializer runs, since a lambda in there can capture it
+            Cell cell = new Cell(null);
+            environment.define(cell);
+            if (stmt.initializer != null) cell.value = evaluate(stmt.initializer);
+            return null;
+        }
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
@@ -121,42 +150,173 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    public Void visitWhileStmt (Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
+        // A block body that needs an environment (one at the top level, see Resolver.visitBlockStmt) gets one for the
+        // whole loop, cleared out each time round. Closures never hold on to an environment, and anything they
+        // capture is in a new Cell each time round anyway
+        boolean reuseScope = stmt.body instanceof Stmt.Block && !((Stmt.Block) stmt.body).sharesFrame;
+        Environment scope = null;
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            Object completion;
+            if (reuseScope) {
+                if (scope == null) scope = new Environment(environment);
+                else scope.clear();
+                completion = executeBlock(((Stmt.Block) stmt.body).statements, scope);
+            } else {
+                completion = execute(stmt.body);
+            }
+            if (completion != null) return completion;
+            if (stmt.increment != null) evaluate(stmt.increment);
         }
         return null;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) return invokeMethod(expr, (Expr.Get) expr.callee);
+
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        List<Expr> arguments = expr.arguments;
+        int count = arguments.size();
+        if (count > 3 || expr.isTailCall) {
+            Object[] values = evaluateArguments(arguments);
+            if (expr.isTailCall) return tailCall(null, callee, values, expr.paren);
+            return call(callee, values, expr.paren);
+        }
+        // The usual small calls hand their arguments over one by one, see LoxCallable
+        Object a = count > 0 ? evaluate(arguments.get(0)) : null;
+        Object b = count > 1 ? evaluate(arguments.get(1)) : null;
+        Object c = count > 2 ? evaluate(arguments.get(2)) : null;
+        return call(callee, count, a, b, c, expr.paren);
+    }
+
+    private Object[] evaluateArguments(List<Expr> arguments) {
+        Object[] values = new Object[arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(arguments.get(i));
+        }
+        return values;
+    }
+
+    // A call in tail position: a Lox function is left for the caller's LoxFunction to call once this body is done,
+    // so tail calls don't use up any more stack. It's returned as the call's value, and the Resolver only marks calls
+    // whose value is returned from the function as it is. The instance is only given for `object.name(...)`
+    Object tailCall(LoxInstance instance, Object callee, Object[] arguments, Token paren) {
+        if (!(callee instanceof LoxFunction)) return call(callee, arguments, paren);
+
+        LoxFunction function = (LoxFunction) callee;
+        checkArity(function, arguments.length, paren);
+        LoxInstance receiver = function.isUnbound() ? instance : function.receiver;
+        return new Completion.TailCall(function, receiver, arguments);
+    }
+
+    // `object.name(...)`, which calls a method straight from the class without making a bound method for it
+    private Object invokeMethod(Expr.Call expr, Expr.Get get) {
+        Object object = evaluate(get.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name,
+                    "Only instances have properties.");
+        }
+        LoxInstance instance = (LoxInstance) object;
+        Object callee = get.cache.getForCall(instance, get.name);
+
+        List<Expr> arguments = expr.arguments;
+        int count = arguments.size();
+        if (count > 3 || expr.isTailCall) {
+            Object[] values = evaluateArguments(arguments);
+            if (expr.isTailCall) return tailCall(instance, callee, values, expr.paren);
+            return invoke(instance, callee, values, expr.paren);
+        }
+        Object a = count > 0 ? evaluate(arguments.get(0)) : null;
+        Object b = count > 1 ? evaluate(arguments.get(1)) : null;
+        Object c = count > 2 ? evaluate(arguments.get(2)) : null;
+        return invoke(instance, callee, count, a, b, c, expr.paren);
+    }
+
+    // Calls what PropertyCache.getForCall found, handing the instance to it if it's an unbound method
+    Object invoke(LoxInstance instance, Object callee, Object[] arguments, Token paren) {
+        if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnbound()) {
+            LoxFunction method = (LoxFunction) callee;
+            checkArity(method, arguments.length, paren);
+            return method.invoke(this, instance, arguments);
+        }
+        return call(callee, arguments, paren);
+    }
+
+    Object invoke(LoxInstance instance, Object callee, int count, Object a, Object b, Object c, Token paren) {
+        if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnbound()) {
+            LoxFunction method = (LoxFunction) callee;
+            checkArity(method, count, paren);
+            return method.invoke(this, instance, count, a, b, c);
         }
+        return call(callee, count, a, b, c, paren);
+    }
+
+    // Shared with code compiled by the JitCompiler, so both report bad calls the same way
+    // Lox functions and classes are called straight from here, it's only the natives that go through the entry points
+    // in LoxCallable. Every Java frame between here and the body is one less level of Lox recursion
+    Object call(Object callee, Object[] arguments, Token paren) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            checkArity(function, arguments.length, paren);
+            return function.invoke(this, function.receiver, arguments);
+        }
+        if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass) callee;
+            checkArity(klass, arguments.length, paren);
+            return klass.construct(this, arguments);
+        }
+        LoxCallable function = callable(callee, arguments.length, paren);
+
+        // If a native function has a problem, catch it and handle it like a runtime error
+        try {
+            return function.call(this, arguments);
+        } catch (NativeFunctionError err) {
+            throw new RuntimeError(paren, err.message);
+        }
+    }
 
+    // A call with count (at most three) arguments
+    Object call(Object callee, int count, Object a, Object b, Object c, Token paren) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            checkArity(function, count, paren);
+            return function.invoke(this, function.receiver, count, a, b, c);
+        }
+        if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass) callee;
+            checkArity(klass, count, paren);
+            return klass.construct(this, count, a, b, c);
+        }
+        LoxCallable function = callable(callee, count, paren);
+
+        try {
+            return LoxCallable.dispatch(function, this, count, a, b, c);
+        } catch (NativeFunctionError err) {
+            throw new RuntimeError(paren, err.message);
+        }
+    }
+
+    private LoxCallable callable(Object callee, int count, Token paren) {
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(paren,
                     "Can only call functions and classes");
         }
 
         LoxCallable function = (LoxCallable) callee;
+        checkArity(function, count, paren);
+        return function;
+    }
+
+    private void checkArity(LoxCallable function, int count, Token paren) {
         // && function.arity() != -1 is to make sure we aren't using the hack I made for native functions to handle
         // A few things
-        if (arguments.size() != function.arity()
+        if (count != function.arity()
         /* && function.arity() != -1*/) {
-            throw new RuntimeError(expr.paren, "Expected" +
+            throw new RuntimeError(paren, "Expected" +
                     + function.arity() + " arguments but got " +
-                    arguments.size() + ".");
-        }
-
-        // If a native function has a problem, catch it and handle it like a runtime error
-        try {
-            return function.call(this, arguments);
-        } catch (NativeFunctionError err) {
-            throw new RuntimeError(expr.paren, err.message);
+                    count + ".");
         }
     }
 
@@ -164,7 +324,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return expr.cache.get((LoxInstance) object, expr.name);
         }
         throw new RuntimeError(expr.name,
                 "Only instances have properties.");
@@ -175,49 +335,75 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        environment.assign(expr.name, value);
+        if (expr.depth >= 0) {
+            if (expr.captured) ((Cell) environment.getAt(expr.depth, expr.slot)).value = value;
+            else environment.assignAt(expr.depth, expr.slot, value);
+        } else if (expr.depth == Resolver.UPVALUE) {
+            environment.upvalues[expr.slot].value = value;
+        } else {
+            assignGlobal(expr, value);
+        }
         return value;
     }
 
+    // Globals are only looked up by name the first time each use of them runs, see Environment.globalCell
+    void assignGlobal(Expr.Assign expr, Object value) {
+        if (expr.global == null) {
+            globals.assign(expr.name, value);
+            expr.global = globals.globalCell(expr.name);
+            return;
+        }
+        expr.global.value = value;
+    }
+
+    Object getGlobal(Expr.Variable expr) {
+        Cell global = expr.global;
+        if (global == null) expr.global = global = globals.globalCell(expr.name);
+        return global.value;
+    }
+
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         Object temp = evaluate(stmt.expression);
         if (interactive_mode){
             System.out.println(stringify(temp));
-            environment.define("_", temp);
+            globals.define("_", temp);
         }
         return null;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.captured) {
+            // Possibly by its own body, so the Cell has to be there before it's made
+            Cell cell = new Cell(null);
+            environment.define(cell);
+            cell.value = new LoxFunction(stmt, environment.capture(stmt.upvalues), false);
+            return null;
+        }
+        LoxFunction function = new LoxFunction(stmt, environment.capture(stmt.upvalues), false);
         environment.define(stmt.name.lexeme, function);
         return null;
     }
 
     // Lambda here, since it fits
     public Object visitLambdaExpr(Expr.Lambda expr) {
-        // Originally I was going to add a "Fake" Function statement so that Loxfunction would be the same thing as a
-        // LoxLambda, but that's a bit awkward to fake here with the Token
-        Stmt.Function placeholder_stmt = new Stmt.Function(
-                new Token(TokenType.IDENTIFIER, "Lambda", null, expr.line), // Here to "Lambda"
-                expr.params, expr.body);
-        return new LoxFunction(placeholder_stmt, environment, false);
+        // The Resolver fakes a Function statement so that Loxfunction would be the same thing as a LoxLambda
+        return new LoxFunction(expr.function, environment.capture(expr.function.upvalues), false);
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(stmt.condition)){
-            execute(stmt.thenBranch);
+    public Object visitIfStmt(Stmt.If stmt) {
+        if (isTruthy(evaluate(stmt.condition))){
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
         return null;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
         return null;
@@ -231,15 +417,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Object visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        return value == null ? Completion.RETURN_NIL : value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        // Arithmetic on arithmetic is worked out on doubles all the way up, and only boxed the once at the top
+        if (lowAlloc && (isArithmetic(expr.left) || isArithmetic(expr.right))) {
+            Object result = nested(expr);
+            if (result != null) return result;
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
@@ -273,8 +465,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left + (double) right;
                 }
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right);
                 }
                 throw new RuntimeError(expr.operator,
                         "Operands must be two numbers or two strings");
@@ -283,6 +475,94 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    // null for the operators that don't take numbers
+    private Object nested(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+            case SLASH:
+            case STAR:
+            case PLUS:
+                return Numbers.box(arithmetic(expr));
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return compare(expr);
+        }
+        return null;
+    }
+
+    // Whether expr is arithmetic that's sure to come out a number (or throw), so whatever it's an operand of can have
+    // it as a double instead of a box. The Optimizer works it out, see Optimizer.visitBinaryExpr
+    static boolean isArithmetic(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary) expr).arithmetic;
+        return expr instanceof Expr.Unary && ((Expr.Unary) expr).arithmetic;
+    }
+
+    // Only the result at the top is boxed, see Numbers.box
+    private double arithmetic(Expr expr) {
+        if (expr instanceof Expr.Binary) return arithmetic((Expr.Binary) expr);
+
+        Expr.Unary unary = (Expr.Unary) expr;
+        if (isArithmetic(unary.right)) return -arithmetic(unary.right);
+        Object right = evaluate(unary.right);
+        checkNumberOperand(unary.operator, right);
+        return -(double) right;
+    }
+
+    private double arithmetic(Expr.Binary expr) {
+        double left;
+        double right;
+        if (isArithmetic(expr.left)) {
+            left = arithmetic(expr.left);
+            right = operand(expr.right, expr.operator);
+        } else {
+            // The right still gets evaluated before the left can complain, as it always has
+            Object value = evaluate(expr.left);
+            right = operand(expr.right, expr.operator);
+            left = number(value, expr.operator);
+        }
+
+        switch (expr.operator.type) {
+            case MINUS: return left - right;
+            case SLASH: return left / right;
+            case STAR: return left * right;
+            default: return left + right;
+        }
+    }
+
+    private boolean compare(Expr.Binary expr) {
+        double left;
+        double right;
+        if (isArithmetic(expr.left)) {
+            left = arithmetic(expr.left);
+            right = operand(expr.right, expr.operator);
+        } else {
+            Object value = evaluate(expr.left);
+            right = operand(expr.right, expr.operator);
+            left = number(value, expr.operator);
+        }
+
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    private double operand(Expr expr, Token operator) {
+        if (isArithmetic(expr)) return arithmetic(expr);
+        return number(evaluate(expr), operator);
+    }
+
+    // checkNumberOperands, for one operand at a time
+    private double number(Object value, Token operator) {
+        if (value instanceof Double) return (double) value;
+        throw new RuntimeError(operator, operator.type == TokenType.PLUS ?
+                "Operands must be two numbers or two strings" : "Operands must be numbers.");
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
@@ -309,7 +589,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot, expr.captured);
     }
 
     @Override
@@ -320,19 +600,16 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.name, "Only instances have fields.");
         }
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        expr.cache.set((LoxInstance) object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        //System.out.println(expr == null);
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-        System.out.println(superclass == null);
-        // "This" is always one level nearer than 'Super''s enviroment
-        LoxInstance object = (LoxInstance) environment.getAt(
-                distance -1, "this"
+        // 'Super' is always an upvalue, and "This" is the first slot of the method's frame or an upvalue
+        LoxClass superclass = (LoxClass) lookUpVariable(expr.keyword, expr.depth, expr.slot, true);
+        LoxInstance object = (LoxInstance) lookUpVariable(expr.keyword,
+                expr.thisDepth, expr.thisSlot, expr.thisCaptured
         );
 
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
@@ -345,6 +622,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr){
+        if (lowAlloc && expr.operator.type == TokenType.MINUS && isArithmetic(expr.right)) {
+            return Numbers.box(-arithmetic(expr.right));
+        }
         Object right = evaluate(expr.right);
 
         switch (expr.operator.type){
@@ -360,34 +640,38 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-
-        return lookUpVariable(expr.name, expr);
+        if (expr.depth == -1) return getGlobal(expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot, expr.captured);
     }
 
-    private Object lookUpVariable (Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else return globals.get(name);
+    private Object lookUpVariable(Token name, int depth, int slot, boolean captured) {
+        if (depth >= 0) {
+            Object value = environment.getAt(depth, slot);
+            return captured ? ((Cell) value).value : value;
+        }
+        if (depth == Resolver.UPVALUE) return environment.upvalues[slot].value;
+        return globals.get(name);
     }
 
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b)
+    static boolean isEqual(Object a, Object b)
     {
         //nil is only equal to nil
         if (a == null && b == null) return true;
         if (a==null) return false;
+        // A String doesn't know it can equal a Rope, the Rope has to be asked
+        if (b instanceof Rope) return b.equals(a);
 
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         //Hack to make Double appear as int
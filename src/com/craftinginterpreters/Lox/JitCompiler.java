@@ -0,0 +1,532 @@
+package com.craftinginterpreters.Lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.Lox.ClassFile.*;
+
+/** Turns the body of a hot function into a JVM class so HotSpot can compile it like any other Java code
+ * `jlox --jit [script]`. Once a LoxFunction has been called THRESHOLD times its body is written out as the run()
+ * method of a hidden class implementing CompiledBody, and every call after that goes straight to it.
+ *
+ * The function's own parameters and locals live in JVM locals rather than an Environment, which is where most of the
+ * win comes from. Anything from further out is one of its upvalues, as usual. Functions that declare functions,
+ * lambdas or classes (whose captured locals would need Cells), or use super, aren't compiled at all and
+ * just carry on in the Interpreter.
+ * */
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static boolean enabled = false;
+    static final int THRESHOLD = 1000;
+
+    private static final String CLASS_NAME = "com/craftinginterpreters/Lox/JitCode";
+    private static final String RUNTIME = "com/craftinginterpreters/Lox/JitRuntime";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "Lcom/craftinginterpreters/Lox/Token;";
+    private static final String CACHE = "Lcom/craftinginterpreters/Lox/PropertyCache;";
+    private static final String INSTANCE = "Lcom/craftinginterpreters/Lox/LoxInstance;";
+    private static final String FIXED_ARGUMENTS = "I" + OBJECT + OBJECT + OBJECT;
+    private static final String UPVALUES = "[Lcom/craftinginterpreters/Lox/Cell;";
+    private static final String RUN_DESCRIPTOR = "(Lcom/craftinginterpreters/Lox/Interpreter;"
+            + UPVALUES + INSTANCE + "[" + OBJECT + ")" + OBJECT;
+
+    // Fixed JVM locals of run()
+    private static final int INTERPRETER = 1;
+    private static final int UPVALUE_ARRAY = 2;
+    private static final int RECEIVER = 3;
+    private static final int ARGUMENTS = 4;
+    private static final int CONSTANTS = 5;
+
+    // Thrown when the function uses something this compiler doesn't handle
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final ClassFile classFile = new ClassFile(CLASS_NAME, "java/lang/Object",
+            "com/craftinginterpreters/Lox/CompiledBody");
+    private final ClassFile.Code code = new ClassFile.Code(CONSTANTS + 1);
+    // Tokens, numbers, strings and caches the code needs, handed to the class when it's created
+    private final List<Object> constants = new ArrayList<>();
+    // One entry per Resolver scope inside the function, mapping its slots to JVM locals
+    private final List<List<Integer>> scopes = new ArrayList<>();
+    private int nextLocal = CONSTANTS + 1;
+
+    private JitCompiler() {}
+
+    // Returns null if the function can't be compiled, in which case it stays interpreted
+    static CompiledBody compile(Stmt.Function function) {
+        try {
+            return new JitCompiler().compileFunction(function);
+        } catch (Unsupported | ClassFile.TooLarge error) {
+            return null;
+        }
+    }
+
+    private CompiledBody compileFunction(Stmt.Function function) {
+        // Fetch the constants once up front
+        code.load(0);
+        code.op(GETFIELD, classFile.fieldRef(CLASS_NAME, "k", "[" + OBJECT), 0);
+        code.store(CONSTANTS);
+
+        beginScope();
+        // Methods have 'this' in the first slot of their frame
+        if (function.isMethod) {
+            code.load(RECEIVER);
+            declare();
+        }
+        for (int i = 0; i < function.params.size(); i++) {
+            code.load(ARGUMENTS);
+            code.pushInt(i);
+            code.op(AALOAD, -1);
+            declare();
+        }
+        for (Stmt statement : function.body) {
+            statement.accept(this);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+
+        classFile.field(ACC_PRIVATE | ACC_FINAL, "k", "[" + OBJECT);
+        classFile.method(ACC_PUBLIC, "<init>", "([" + OBJECT + ")V", constructor());
+        classFile.method(ACC_PUBLIC, "run", RUN_DESCRIPTOR, code);
+
+        try {
+            Class<?> compiled = MethodHandles.lookup().defineHiddenClass(classFile.toBytes(), true).lookupClass();
+            return (CompiledBody) compiled.getConstructor(Object[].class).newInstance((Object) constants.toArray());
+        } catch (ReflectiveOperationException | LinkageError error) {
+            // A class the JVM rejects (a VerifyError or ClassFormatError, say) is a bug in here rather than in the
+            // script. The function carries on in the Interpreter, but it's reported so the bug doesn't go unnoticed
+            System.err.println("[line " + function.name.line + "] Could not compile '" + function.name.lexeme
+                    + "', it stays interpreted: " + error);
+            return null;
+        }
+    }
+
+    private ClassFile.Code constructor() {
+        ClassFile.Code init = new ClassFile.Code(2);
+        init.load(0);
+        init.op(INVOKESPECIAL, classFile.methodRef("java/lang/Object", "<init>", "()V"), -1);
+        init.load(0);
+        init.load(1);
+        init.op(PUTFIELD, classFile.fieldRef(CLASS_NAME, "k", "[" + OBJECT), -2);
+        init.op(RETURN, 0);
+        return init;
+    }
+
+    // Helpers
+
+    private void beginScope() {
+        scopes.add(new ArrayList<>());
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    // Pops the value on top of the stack into the next slot of the innermost scope, the same order the Resolver
+    // hands slots out in
+    private void declare() {
+        int local = nextLocal++;
+        code.store(local);
+        scopes.get(scopes.size() - 1).add(local);
+    }
+
+    // The JVM local holding one of the function's own variables
+    private int localFor(int depth, int slot) {
+        return scopes.get(scopes.size() - 1 - depth).get(slot);
+    }
+
+    private void constant(Object value) {
+        int index = constants.indexOf(value);
+        if (index == -1) {
+            index = constants.size();
+            constants.add(value);
+        }
+        if (index > Short.MAX_VALUE) throw new ClassFile.TooLarge("Too many constants.");
+        code.load(CONSTANTS);
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+        // Numbers and strings are only ever passed on as Objects
+        if (!(value instanceof Double || value instanceof String)) {
+            code.op(CHECKCAST, classFile.classRef(value.getClass().getName().replace('.', '/')), 0);
+        }
+    }
+
+    // Calls one of the JitRuntime helpers, which all take Objects (and maybe a Token) and give back an Object
+    private void runtime(String method, String descriptor, int stackEffect) {
+        code.op(INVOKESTATIC, classFile.methodRef(RUNTIME, method, descriptor), stackEffect);
+    }
+
+    private void truthy() {
+        runtime("isTruthy", "(" + OBJECT + ")Z", 0);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // Statements
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.sharesFrame) beginScope();
+        List<Integer> scope = scopes.get(scopes.size() - 1);
+        int size = scope.size();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        if (stmt.sharesFrame) scope.subList(size, scope.size()).clear();
+        else endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int elseLabel = code.newLabel();
+        int endLabel = code.newLabel();
+
+        compile(stmt.condition);
+        truthy();
+        code.jump(IFEQ, elseLabel, -1);
+        compile(stmt.thenBranch);
+        code.jump(GOTO, endLabel, 0);
+        code.mark(elseLabel);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        code.mark(endLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        runtime("print", "(" + OBJECT + ")V", -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        declare();
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int startLabel = code.newLabel();
+        int endLabel = code.newLabel();
+
+        code.mark(startLabel);
+        compile(stmt.condition);
+        truthy();
+        code.jump(IFEQ, endLabel, -1);
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            code.op(POP, -1);
+        }
+        code.jump(GOTO, startLabel, 0);
+        code.mark(endLabel);
+        return null;
+    }
+
+    // Expressions, each leaves exactly one value on the stack
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        int elseLabel = code.newLabel();
+        int endLabel = code.newLabel();
+
+        compile(expr.condition);
+        truthy();
+        code.jump(IFEQ, elseLabel, -1);
+        compile(expr.left);
+        code.jump(GOTO, endLabel, 0);
+        // Only one of the branches' values is ever on the stack
+        code.endBranch(1);
+        code.mark(elseLabel);
+        compile(expr.right);
+        code.mark(endLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        if (expr.depth == -1) {
+            // The node itself keeps the global's Cell, see Interpreter.assignGlobal
+            code.load(INTERPRETER);
+            constant(expr);
+            runtime("assignGlobal", "(" + OBJECT + "Lcom/craftinginterpreters/Lox/Interpreter;"
+                    + "Lcom/craftinginterpreters/Lox/Expr$Assign;)" + OBJECT, -2);
+            return null;
+        }
+
+        if (expr.depth == Resolver.UPVALUE) {
+            code.load(UPVALUE_ARRAY);
+            code.pushInt(expr.slot);
+            runtime("assignUpvalue", "(" + OBJECT + UPVALUES + "I)" + OBJECT, -2);
+            return null;
+        }
+        // Nothing in here can capture anything, so none of its own locals are ever in a Cell
+        if (expr.captured) throw new Unsupported();
+        code.op(DUP, 1);
+        code.store(localFor(expr.depth, expr.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.COMMA) {
+            code.op(POP, -1);
+            compile(expr.right);
+            return null;
+        }
+        compile(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+                runtime("notEqual", "(" + OBJECT + OBJECT + ")" + OBJECT, -1);
+                return null;
+            case EQUAL_EQUAL:
+                runtime("equal", "(" + OBJECT + OBJECT + ")" + OBJECT, -1);
+                return null;
+        }
+
+        String method;
+        switch (expr.operator.type) {
+            case GREATER: method = "greater"; break;
+            case GREATER_EQUAL: method = "greaterEqual"; break;
+            case LESS: method = "less"; break;
+            case LESS_EQUAL: method = "lessEqual"; break;
+            case MINUS: method = "subtract"; break;
+            case SLASH: method = "divide"; break;
+            case STAR: method = "multiply"; break;
+            case PLUS: method = "add"; break;
+            default: throw new Unsupported();
+        }
+        constant(expr.operator);
+        runtime(method, "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            invokeMethod(expr, (Expr.Get) expr.callee);
+            return null;
+        }
+
+        code.load(INTERPRETER);
+        compile(expr.callee);
+
+        if (hasFixedArguments(expr)) {
+            fixedArguments(expr.arguments);
+            constant(expr.paren);
+            runtime("call", "(Lcom/craftinginterpreters/Lox/Interpreter;" + OBJECT + FIXED_ARGUMENTS + TOKEN + ")"
+                    + OBJECT, -6);
+            return null;
+        }
+        arguments(expr.arguments);
+        constant(expr.paren);
+        runtime(expr.isTailCall ? "tailCall" : "call", "(Lcom/craftinginterpreters/Lox/Interpreter;" + OBJECT + "[" + OBJECT + TOKEN + ")"
+                + OBJECT, -3);
+        return null;
+    }
+
+    // `object.name(...)`, which leaves a method unbound and hands it the instance directly, as the Interpreter does
+    private void invokeMethod(Expr.Call expr, Expr.Get get) {
+        code.load(INTERPRETER);
+        compile(get.object);
+        constant(get.name);
+        runtime("checkReceiver", "(" + OBJECT + TOKEN + ")" + INSTANCE, -1);
+        code.op(DUP, 1);
+        constant(get.cache);
+        constant(get.name);
+        runtime("getForCall", "(" + INSTANCE + CACHE + TOKEN + ")" + OBJECT, -2);
+
+        if (hasFixedArguments(expr)) {
+            fixedArguments(expr.arguments);
+            constant(expr.paren);
+            runtime("invoke", "(Lcom/craftinginterpreters/Lox/Interpreter;" + INSTANCE + OBJECT + FIXED_ARGUMENTS
+                    + TOKEN + ")" + OBJECT, -7);
+            return;
+        }
+        arguments(expr.arguments);
+        constant(expr.paren);
+        runtime(expr.isTailCall ? "tailInvoke" : "invoke", "(Lcom/craftinginterpreters/Lox/Interpreter;" + INSTANCE + OBJECT + "[" + OBJECT
+                + TOKEN + ")" + OBJECT, -4);
+    }
+
+    // Small calls that aren't in tail position skip the array, like they do in the Interpreter
+    private boolean hasFixedArguments(Expr.Call expr) {
+        return !expr.isTailCall && expr.arguments.size() <= 3;
+    }
+
+    // The count and then always three arguments, padded with nulls
+    private void fixedArguments(List<Expr> arguments) {
+        code.pushInt(arguments.size());
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+        for (int i = arguments.size(); i < 3; i++) {
+            code.op(ACONST_NULL, 1);
+        }
+    }
+
+    private void arguments(List<Expr> arguments) {
+        code.pushInt(arguments.size());
+        code.op(ANEWARRAY, classFile.classRef("java/lang/Object"), 0);
+        for (int i = 0; i < arguments.size(); i++) {
+            code.op(DUP, 1);
+            code.pushInt(i);
+            compile(arguments.get(i));
+            code.op(AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        constant(expr.cache);
+        constant(expr.name);
+        runtime("get", "(" + OBJECT + CACHE + TOKEN + ")" + OBJECT, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean) {
+            String field = (Boolean) expr.value ? "TRUE" : "FALSE";
+            code.op(GETSTATIC, classFile.fieldRef("java/lang/Boolean", field, "Ljava/lang/Boolean;"), 1);
+        } else {
+            constant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        int endLabel = code.newLabel();
+
+        compile(expr.left);
+        code.op(DUP, 1);
+        truthy();
+        // 'or' keeps the left value when it's truthy, 'and' when it isn't
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, endLabel, -1);
+        code.op(POP, -1);
+        compile(expr.right);
+        code.mark(endLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        constant(expr.name);
+        runtime("checkInstance", "(" + OBJECT + TOKEN + ")" + INSTANCE, -1);
+        compile(expr.value);
+        constant(expr.cache);
+        constant(expr.name);
+        runtime("set", "(" + INSTANCE + OBJECT + CACHE + TOKEN + ")" + OBJECT, -3);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        variable(expr.depth, expr.slot, expr.captured);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        if (expr.operator.type == TokenType.MINUS) {
+            constant(expr.operator);
+            runtime("negate", "(" + OBJECT + TOKEN + ")" + OBJECT, -1);
+        } else {
+            runtime("not", "(" + OBJECT + ")" + OBJECT, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == -1) {
+            code.load(INTERPRETER);
+            constant(expr);
+            runtime("getGlobal", "(Lcom/craftinginterpreters/Lox/Interpreter;"
+                    + "Lcom/craftinginterpreters/Lox/Expr$Variable;)" + OBJECT, -1);
+            return null;
+        }
+        variable(expr.depth, expr.slot, expr.captured);
+        return null;
+    }
+
+    private void variable(int depth, int slot, boolean captured) {
+        if (depth == Resolver.UPVALUE) {
+            code.load(UPVALUE_ARRAY);
+            code.pushInt(slot);
+            runtime("getUpvalue", "(" + UPVALUES + "I)" + OBJECT, -1);
+            return;
+        }
+        if (captured) throw new Unsupported();
+        code.load(localFor(depth, slot));
+    }
+}
@@ -0,0 +1,171 @@
+package com.craftinginterpreters.Lox;
+
+/** The operations code generated by the JitCompiler calls into
+ * Each one behaves exactly like the matching case in the Interpreter, errors included, so compiled and interpreted
+ * functions can't be told apart. They're small enough for HotSpot to inline into the compiled function.
+ * */
+final class JitRuntime {
+    private JitRuntime() {}
+
+    static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    // Variables
+
+    static Object getGlobal(Interpreter interpreter, Expr.Variable variable) {
+        return interpreter.getGlobal(variable);
+    }
+
+    static Object assignGlobal(Object value, Interpreter interpreter, Expr.Assign assign) {
+        interpreter.assignGlobal(assign, value);
+        return value;
+    }
+
+    static Object getUpvalue(Cell[] upvalues, int index) {
+        return upvalues[index].value;
+    }
+
+    static Object assignUpvalue(Object value, Cell[] upvalues, int index) {
+        upvalues[index].value = value;
+        return value;
+    }
+
+    // Operators
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(left, right);
+        }
+        throw new RuntimeError(operator,
+                "Operands must be two numbers or two strings");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left - (double) right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left * (double) right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left / (double) right;
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        if (right instanceof Double) return -(double) right;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static Object not(Object right) {
+        return !Interpreter.isTruthy(right);
+    }
+
+    // Calls and objects
+
+    static Object call(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        return interpreter.call(callee, arguments, paren);
+    }
+
+    // Calls with up to three arguments pass them on the stack, padded out with nulls
+    static Object call(Interpreter interpreter, Object callee, int count, Object a, Object b, Object c, Token paren) {
+        return interpreter.call(callee, count, a, b, c, paren);
+    }
+
+    // The parts of `object.name(...)`
+    static LoxInstance checkReceiver(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name,
+                    "Only instances have properties.");
+        }
+        return (LoxInstance) object;
+    }
+
+    // Calls in tail position hand back a TailCall for LoxFunction to make, see Interpreter.tailCall
+    static Object tailCall(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        return interpreter.tailCall(null, callee, arguments, paren);
+    }
+
+    static Object tailInvoke(Interpreter interpreter, LoxInstance object, Object callee, Object[] arguments,
+                             Token paren) {
+        return interpreter.tailCall(object, callee, arguments, paren);
+    }
+
+    static Object getForCall(LoxInstance object, PropertyCache cache, Token name) {
+        return cache.getForCall(object, name);
+    }
+
+    static Object invoke(Interpreter interpreter, LoxInstance object, Object callee, Object[] arguments,
+                         Token paren) {
+        return interpreter.invoke(object, callee, arguments, paren);
+    }
+
+    static Object invoke(Interpreter interpreter, LoxInstance object, Object callee, int count,
+                         Object a, Object b, Object c, Token paren) {
+        return interpreter.invoke(object, callee, count, a, b, c, paren);
+    }
+
+    static Object get(Object object, PropertyCache cache, Token name) {
+        if (object instanceof LoxInstance) {
+            return cache.get((LoxInstance) object, name);
+        }
+        throw new RuntimeError(name,
+                "Only instances have properties.");
+    }
+
+    static LoxInstance checkInstance(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return (LoxInstance) object;
+    }
+
+    static Object set(LoxInstance object, Object value, PropertyCache cache, Token name) {
+        cache.set(object, name, value);
+        return value;
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+}
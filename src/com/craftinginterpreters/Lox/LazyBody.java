@@ -0,0 +1,75 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.List;
+import java.util.Set;
+
+/** A function body --lazy skipped over, which is parsed and resolved the first time the function is called
+ * The Parser only matches up the braces and keeps the tokens in between. What the closure captures can't wait until
+ * then, so the Resolver captures every local around the declaration that the body so much as names, and the body
+ * resolves against those when it is parsed, the same as it would have up front. Most of a big library is never
+ * called, so most bodies never cost more than that. Until then the function's body list is empty.
+ *
+ * The catch is that errors in a body only turn up when it's first called, as a runtime error for that call. Without
+ * --lazy everything is parsed up front and every error is reported before anything runs, as usual. --check-bodies
+ * keeps the rest of --lazy but parses each body as the Resolver passes it, so the errors are back up front.
+ * Parsed bodies get the Optimizer's folding but not the Hoister, which runs on the whole program before it's resolved.
+ * */
+final class LazyBody {
+    // Set by Lox, for the engines that call LoxFunction (the Interpreter and --jit)
+    static boolean enabled = false;
+    // --check-bodies, see Resolver.resolveFunction
+    static boolean checked = false;
+
+    // null once the body's been parsed
+    private TokenBuffer tokens;
+    private boolean failed = false;
+    // Every name the body mentions at all, which is what the Resolver captures for it
+    final Set<String> names;
+
+    // Filled in by the Resolver when it passes the declaration, see Resolver.resolveLazily
+    List<String> upvalues;
+    Resolver.ClassType classType;
+    Resolver.FunctionType functionType;
+
+    LazyBody(TokenBuffer tokens, Set<String> names) {
+        this.tokens = tokens;
+        this.names = names;
+    }
+
+    boolean isPending() {
+        return tokens != null;
+    }
+
+    // Fills in the function's body, if it hasn't been already
+    void parse(Stmt.Function function) {
+        // The errors were already reported, so just stop here (and every time it's called after this)
+        if (!check(function)) throw new RuntimeError(function.name, "Function body has errors.");
+    }
+
+    // Parses and resolves the body if that hasn't been done yet, and says whether it had no errors. Those are only
+    // this body's, so an error found mid-run fails the call rather than the whole program
+    boolean check(Stmt.Function function) {
+        if (failed) return false;
+        if (tokens == null) return true;
+
+        Parser parser = new Parser(tokens);
+        List<Stmt> body = parser.body();
+        tokens = null;
+        function.body.addAll(body);
+        Resolver resolver = new Resolver();
+        if (!parser.hadError) resolver.resolveLazily(function, this);
+
+        if (parser.hadError || resolver.hadError) {
+            failed = true;
+            function.body.clear();
+            return false;
+        }
+
+        List<Stmt> folded = new Optimizer().optimize(function.body);
+        if (folded != function.body) {
+            function.body.clear();
+            function.body.addAll(folded);
+        }
+        return true;
+    }
+}
@@ -3,8 +3,10 @@ package com.craftinginterpreters.Lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,29 +14,95 @@ import java.util.List;
 public class Lox {
 
     private static final Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM();
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    // Which engine runs the resolved program
+    //   TREE: the Interpreter walks the syntax tree directly
+    //   NODES (--nodes): the tree is built into executable nodes first
+    //   VM (--vm): the tree is compiled to bytecode for the VM
+    // --jit leaves the Interpreter in charge but compiles hot functions to JVM bytecode
+    private enum Engine {
+        TREE,
+        NODES,
+        VM
+    }
+    private static Engine engine = Engine.TREE;
+    // --dump-ast prints the tree the Optimizer hands on before running it
+    private static boolean dumpAst = false;
+    // --lazy only parses a function body when it's first called, see LazyBody. Only the Interpreter (and so --jit)
+    // can do that, the other engines compile every body up front anyway
+    private static boolean lazy = false;
+    // --no-cache always parses the script, and doesn't save its tree for next time. See ScriptCache
+    private static boolean useCache = true;
+    // --stats reports what the run saved once it's done, on stderr so it stays out of the script's output
+    private static boolean stats = false;
 
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1){
-            System.out.println("Usage: jlox [script]");
-        } else if (args.length == 1){
-            runFile(args[0]);
+        List<String> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                engine = Engine.VM;
+            } else if (arg.equals("--nodes")) {
+                engine = Engine.NODES;
+            } else if (arg.equals("--jit")) {
+                JitCompiler.enabled = true;
+            } else if (arg.equals("--dump-ast")) {
+                dumpAst = true;
+            } else if (arg.equals("--lazy")) {
+                lazy = true;
+            } else if (arg.equals("--check-bodies")) {
+                LazyBody.checked = true;
+            } else if (arg.equals("--no-cache")) {
+                useCache = false;
+            } else if (arg.equals("--low-alloc")) {
+                interpreter.lowAlloc = true;
+            } else if (arg.equals("--stats")) {
+                stats = true;
+                interpreter.stats = true;
+            } else {
+                scripts.add(arg);
+            }
+        }
+
+        LazyBody.enabled = lazy && engine == Engine.TREE;
+
+        if (scripts.size() > 1){
+            System.out.println("Usage: jlox [--vm | --nodes | --jit] [--lazy [--check-bodies]] [--low-alloc] [--dump-ast] [--no-cache] [--stats] [script]");
+        } else if (scripts.size() == 1){
+            runFile(scripts.get(0));
         } else {
             runPrompt();
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path file = Paths.get(path);
+        // The cache holds whole trees, which is the opposite of what --lazy is after
+        ScriptCache cache = useCache && !LazyBody.enabled ? ScriptCache.of(file) : null;
+        List<Stmt> statements = cache != null ? cache.load() : null;
+
+        if (statements == null) {
+            // Read as it's scanned rather than all up front, see Scanner
+            try (Reader reader = new InputStreamReader(Files.newInputStream(file), Charset.defaultCharset())) {
+                statements = compile(new Scanner(reader));
+            }
+            if (statements != null && cache != null) cache.store(statements);
+        }
+        if (statements != null) execute(statements);
+        if (stats) printStats();
 
         //if there's an error, exit
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    private static void printStats() {
+        System.err.println("Environments not allocated for blocks sharing their enclosing frame: "
+                + interpreter.sharedBlocks);
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -42,29 +110,60 @@ public class Lox {
         interpreter.interactive_mode = true;
         for (;;){
             System.out.print(">>> ");
-            run(reader.readLine());
+            run(new Scanner(reader.readLine()));
             hadError = false;
         }
     }
 
-    private static void run(String source){
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+    private static void run(Scanner scanner){
+        List<Stmt> statements = compile(scanner);
+        if (statements != null) execute(statements);
+    }
+
+    // Everything up to running: the resolved and optimized tree, or null if there were errors
+    private static List<Stmt> compile(Scanner scanner) {
+        Parser parser = new Parser(scanner);
         List<Stmt> statements = parser.parse();
         // Stop if there was a syntax error
-        if (hadError) return;
+        if (parser.hadError) hadError = true;
+        if (hadError) return null;
+
+        // Loop invariants come out before resolving, so their variables get slots like any other local
+        statements = new Hoister(parser.assigned).hoist(statements);
 
         // Semantic analysis pass
-        Resolver resolver = new Resolver (interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
 
         //Stop if there was a error in the resolution pass
-        if (hadError) return;
+        if (resolver.hadError) hadError = true;
+        if (hadError) return null;
+
+        return new Optimizer().optimize(statements);
+    }
+
+    private static void execute(List<Stmt> statements) {
+        if (dumpAst) System.out.print(new AstPrinter().print(statements));
+
+        if (engine == Engine.VM) {
+            ObjFunction script = new Compiler(interpreter.interactive_mode).compile(statements);
+            // Stop if the program was too big for the bytecode format
+            if (hadError) return;
+            vm.interpret(script);
+            return;
+        }
+
+        if (engine == Engine.NODES) {
+            StmtNode[] nodes = new NodeCompiler(interpreter).compile(statements);
+            try {
+                StmtNode.executeAll(nodes, interpreter.globals);
+            } catch (RuntimeError error) {
+                runtimeError(error);
+            }
+            return;
+        }
 
-        // System.out.print("Current AST: ");
-        // System.out.println(new AstPrinter().print(expression));
         interpreter.interpret(statements);
 
     }
@@ -72,16 +171,23 @@ public class Lox {
     // Error reporting code here
     static void error(int line, String message) {
         report(line, "", message);
+        hadError = true;
     }
 
     private static void report(int line, String where, String message){
         System.err.println(
                 "[line " + line + "] Error" + where + ": " + message
         );
-        hadError = true;
     }
 
     static void error(Token token, String message) {
+        report(token, message);
+        hadError = true;
+    }
+
+    // Prints the error without marking the run as failed. The Parser and Resolver keep track of their own errors,
+    // since one of them can be working on a --lazy body in the middle of a run. See LazyBody
+    static void report(Token token, String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         }
@@ -3,6 +3,51 @@ package com.craftinginterpreters.Lox;
 import java.util.List;
 
 interface LoxCallable {
+    Object[] NO_ARGUMENTS = new Object[0];
+
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    // Calls to natives with up to three arguments, which is nearly all of them, come through these so they don't need
+    // an array for the arguments at all. The natives in Globals override the one they take, anything else just gets
+    // them packed up. Lox functions and classes don't come through here, Interpreter.call runs them directly.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] {a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] {a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[] {a, b, c});
+    }
+
+    default Object call(Interpreter interpreter, List<Object> arguments) {
+        return call(interpreter, arguments.toArray());
+    }
+
+    // Picks the entry point for count (at most three) arguments, anything past count is ignored
+    static Object dispatch(LoxCallable function, Interpreter interpreter, int count, Object a, Object b, Object c) {
+        switch (count) {
+            case 0: return function.call0(interpreter);
+            case 1: return function.call1(interpreter, a);
+            case 2: return function.call2(interpreter, a, b);
+            default: return function.call3(interpreter, a, b, c);
+        }
+    }
+
+    // The arguments of a fixed arity call as an array, for the places that need one after all
+    static Object[] pack(int count, Object a, Object b, Object c) {
+        switch (count) {
+            case 0: return NO_ARGUMENTS;
+            case 1: return new Object[] {a};
+            case 2: return new Object[] {a, b};
+            default: return new Object[] {a, b, c};
+        }
+    }
 }
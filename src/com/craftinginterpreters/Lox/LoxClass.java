@@ -1,54 +1,67 @@
 package com.craftinginterpreters.Lox;
 
-import java.util.List;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 public class LoxClass extends LoxInstance implements LoxCallable{
     final String name;
+    // Flattened when the class is made: each table already holds everything inherited from the superclass with this
+    // class's own methods on top, so a lookup is a single probe however deep the hierarchy is. Classes can't change
+    // once defined, so these never need rebuilding. Keyed by identity, since method names are interned (see Names).
     private final Map<String, LoxFunction> methods;
     private final Map<String, LoxFunction> static_methods;
+    private final LoxFunction initializer;
     final LoxClass superclass;
+    // What a new instance starts out with, see LoxInstance
+    final Shape instanceShape = new Shape(this);
+    int instanceSize = 0;
 
     LoxClass(String name, LoxClass superclass,
              Map<String, LoxFunction> methods, Map<String, LoxFunction> static_methods) {
         this.name = name;
-        this.methods = methods;
-        this.static_methods = static_methods;
+        this.methods = flatten(superclass == null ? null : superclass.methods, methods);
+        this.static_methods = flatten(superclass == null ? null : superclass.static_methods, static_methods);
+        this.initializer = this.methods.get("init");
         this.superclass = superclass;
     }
 
+    private static Map<String, LoxFunction> flatten(Map<String, LoxFunction> inherited,
+                                                    Map<String, LoxFunction> own) {
+        Map<String, LoxFunction> table = new IdentityHashMap<>();
+        if (inherited != null) table.putAll(inherited);
+        table.putAll(own);
+        return table;
+    }
+
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        return methods.get(name);
+    }
 
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
+    LoxFunction findStaticMethod(String name) {
+        return static_methods.get(name);
+    }
 
-        return null;
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return construct(interpreter, arguments);
     }
 
-    LoxFunction findStaticMethod(String name) {
-        if (static_methods.containsKey(name)) {
-            return static_methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findStaticMethod(name);
+    // Interpreter.call makes new instances through these directly
+    Object construct(Interpreter interpreter, Object[] arguments) {
+        LoxInstance instance = new LoxInstance(this);
+        // If an initializer is declared, call it with "this" as the new instance
+        // given the appropriate arguements
+        if (initializer != null) {
+            initializer.invoke(interpreter, instance, arguments);
         }
-
-        return null;
+        return instance;
     }
 
-    @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    // The same for count (at most three) arguments
+    Object construct(Interpreter interpreter, int count, Object a, Object b, Object c) {
         LoxInstance instance = new LoxInstance(this);
-        // check to see if the initializer is declared
-        LoxFunction initializer = findMethod("init");
-        // If it is declared, assign to "this" the reference to the instance in
-        // the constructor, and then call it given the appropriate arguements
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, count, a, b, c);
         }
         return instance;
     }
@@ -72,8 +85,7 @@ public class LoxClass extends LoxInstance implements LoxCallable{
 
     @Override
     public int arity() {
-        LoxFunction init =  findMethod("init");
-        if (init!= null) return init.arity();
+        if (initializer != null) return initializer.arity();
         // return 0 if no defined initializer
         return 0;
     }
@@ -1,42 +1,130 @@
 package com.craftinginterpreters.Lox;
 
-import java.util.List;
-
 public class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    private final boolean isInitalizer;
+    final Stmt.Function declaration;
+    // Just the variables the body uses from outside it, see Cell
+    final Cell[] upvalues;
+    final boolean isInitalizer;
+    // The instance a method was bound to, null for plain functions and for the methods held by a class
+    final LoxInstance receiver;
+
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitalizer) {
+        this(declaration, upvalues, isInitalizer, null);
+    }
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitalizer) {
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitalizer, LoxInstance receiver) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.isInitalizer = isInitalizer;
+        this.receiver = receiver;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        // This binds a new environment reffering to an objects "this" reference
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitalizer);
+        // This remembers the object "this" refers to, it's put in the frame when the method is called.
+        // Only needed when a method is used as a value, calling one directly goes through invoke() instead
+        return new LoxFunction(declaration, upvalues, isInitalizer, instance);
+    }
+
+    // Methods from a class's table are only ever called bound, or through invoke()
+    boolean isUnbound() {
+        return declaration.isMethod && receiver == null;
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    // Calls the function with 'this' as the given instance, which is how `object.method()` runs a method without
+    // binding it first. 'this' is the first slot of a method's frame, ahead of the parameters
+    // The body runs straight from here rather than through execute(), so a call that isn't a tail call costs no
+    // more Java stack than it did before tail calls: only a body that ends in one goes on to the trampoline
+    Object invoke(Interpreter interpreter, LoxInstance instance, Object[] arguments) {
+        Object result = prepare() ? runCompiled(interpreter, instance, arguments)
+                : run(interpreter, instance, frame(instance, arguments));
+        return result instanceof Completion.TailCall ? complete(interpreter, result) : result;
+    }
+
+    // The same for count (at most three) arguments, which go straight into the frame
+    Object invoke(Interpreter interpreter, LoxInstance instance, int count, Object a, Object b, Object c) {
+        Object result;
+        if (prepare()) {
+            result = runCompiled(interpreter, instance, LoxCallable.pack(count, a, b, c));
+        } else {
+            Environment environment = frame(instance);
+            if (count > 0) environment.define(a);
+            if (count > 1) environment.define(b);
+            if (count > 2) environment.define(c);
+            box(environment);
+            result = run(interpreter, instance, environment);
         }
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitalizer) return closure.getAt(0, "this");
+        return result instanceof Completion.TailCall ? complete(interpreter, result) : result;
+    }
 
-            return returnValue.value;
+    // A trampoline: when the body ends in a tail call, the call comes back here to be made in place of this one
+    // so a chain of them (like a tail recursive loop) runs in constant stack
+    private static Object complete(Interpreter interpreter, Object result) {
+        while (result instanceof Completion.TailCall) {
+            Completion.TailCall tailCall = (Completion.TailCall) result;
+            result = tailCall.function.execute(interpreter, tailCall.receiver, tailCall.arguments);
         }
+        return result;
+    }
+
+    // Runs the body once, giving back what the call returns or a TailCall to make next
+    private Object execute(Interpreter interpreter, LoxInstance instance, Object[] arguments) {
+        if (prepare()) return runCompiled(interpreter, instance, arguments);
+        return run(interpreter, instance, frame(instance, arguments));
+    }
+
+    // Gets the body ready to run, and says whether it's been compiled
+    private boolean prepare() {
+        // A body --lazy skipped gets parsed on the first call, see LazyBody
+        if (declaration.lazy != null) declaration.lazy.parse(declaration);
+        // Hot functions get one go at being compiled, if that fails they just stay interpreted
+        if (JitCompiler.enabled && declaration.compiled == null
+                && ++declaration.calls == JitCompiler.THRESHOLD) {
+            declaration.compiled = JitCompiler.compile(declaration);
+        }
+        return declaration.compiled != null;
+    }
+
+    private Object runCompiled(Interpreter interpreter, LoxInstance instance, Object[] arguments) {
+        Object result = declaration.compiled.run(interpreter, upvalues, instance, arguments);
+        if (isInitalizer) return instance;
+        return result;
+    }
+
+    // A frame for the body with 'this' already in it, ready for the arguments
+    private Environment frame(LoxInstance instance) {
+        Environment environment = new Environment(upvalues);
+        if (declaration.isMethod) environment.define(instance);
+        return environment;
+    }
+
+    // A frame with the arguments in it as well
+    private Environment frame(LoxInstance instance, Object[] arguments) {
+        Environment environment = frame(instance);
+        for (Object argument : arguments) {
+            environment.define(argument);
+        }
+        box(environment);
+        return environment;
+    }
+
+    // Puts 'this' and any parameters a closure in the body captures into Cells of their own, once they're in
+    private void box(Environment environment) {
+        for (int slot : declaration.capturedParams) {
+            environment.slots[slot] = new Cell(environment.slots[slot]);
+        }
+    }
+
+    // Runs the body in a frame that's been filled in
+    Object run(Interpreter interpreter, LoxInstance instance, Environment environment) {
+        Object completion = interpreter.executeBlock(declaration.body, environment);
 
-        if (isInitalizer) return closure.getAt(0, "this");
-        return null;
+        if (isInitalizer) return instance;
+        return Completion.returnValue(completion);
     }
 
     @Override
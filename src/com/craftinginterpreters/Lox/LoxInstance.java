@@ -1,22 +1,26 @@
 package com.craftinginterpreters.Lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
     private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    // Fields are stored by slot, and the shape says which name is in which slot. See Shape
+    Shape shape;
+    Object[] fields;
 
     LoxInstance(){}
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.instanceShape;
+        this.fields = new Object[klass.instanceSize];
     }
 
     Object get(Token name) {
         // Check if instance contains field x - if it does, return it
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int slot = shape.slotOf(name.lexeme);
+        if (slot != -1) {
+            return fields[slot];
         }
         // If the reffered name isn't a local field, check the class to see if it contains the method
         // If it does, return it while binding 'this'
@@ -31,7 +35,22 @@ class LoxInstance {
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slotOf(name.lexeme);
+        if (slot == -1) {
+            slot = shape.size;
+            addField(shape.with(name.lexeme));
+        }
+        fields[slot] = value;
+    }
+
+    // Moves to a shape with one more field on the end, making room for it
+    void addField(Shape next) {
+        if (shape.size == fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+        }
+        shape = next;
+        // Later instances start out with room for as many fields as this class has needed so far
+        if (next.size > klass.instanceSize) klass.instanceSize = next.size;
     }
 
     @Override
@@ -0,0 +1,61 @@
+package com.craftinginterpreters.Lox;
+
+/** The one copy of every identifier
+ * The Scanner runs each name through here, so the same name is always the same String and anything keyed by name
+ * can compare with == (the IdentityHashMaps in Environment, Shape and LoxClass rely on it). The copy kept is the
+ * JVM's interned one, which makes the names spelled out in Java, like "init" or the natives, the same objects as
+ * the ones in the source. A name that's been seen before is found straight from the Scanner's buffer without making
+ * a String of it.
+ * The Scanner puts punctuation through here as well, so an operator's lexeme is never a String of its own either.
+ * Anything that makes up a name itself has to intern it here too, see the Optimizer.
+ * */
+final class Names {
+    // Open addressing, kept at most half full. The hash is String.hashCode, so growing can use the cached one
+    private static String[] table = new String[256];
+    private static int count = 0;
+
+    private Names() {}
+
+    static String intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    static String intern(char[] source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source[i];
+        }
+
+        int mask = table.length - 1;
+        int index = hash & mask;
+        for (String name = table[index]; name != null; name = table[index]) {
+            if (matches(name, source, start, end)) return name;
+            index = (index + 1) & mask;
+        }
+
+        String name = new String(source, start, end - start).intern();
+        table[index] = name;
+        if (++count * 2 > table.length) grow();
+        return name;
+    }
+
+    private static boolean matches(String name, char[] source, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = start; i < end; i++) {
+            if (name.charAt(i - start) != source[i]) return false;
+        }
+        return true;
+    }
+
+    private static void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for (String name : old) {
+            if (name == null) continue;
+            int index = name.hashCode() & mask;
+            while (table[index] != null) index = (index + 1) & mask;
+            table[index] = name;
+        }
+    }
+}
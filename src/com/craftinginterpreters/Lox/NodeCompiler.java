@@ -0,0 +1,229 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.List;
+
+/** Builds the resolved syntax tree into a tree of executable nodes
+ * This walks the tree once up front so that running it never goes back through accept() or switches on operator
+ * types: `jlox --nodes [script]`. Scoping works exactly as it does in the Interpreter, using the depth and slot the
+ * Resolver left on each variable, and Cells for the ones closures capture.
+ * */
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    NodeCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    StmtNode[] compile(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = statements.get(i).accept(this);
+        }
+        return nodes;
+    }
+
+    private ExprNode compile(Expr expr) {
+        if (expr == null) return null;
+        return expr.accept(this);
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        if (stmt == null) return null;
+        return stmt.accept(this);
+    }
+
+    // Statements
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.sharesFrame) {
+            return new StmtNode.SharedBlock(compile(stmt.statements), interpreter.stats ? interpreter : null);
+        }
+        return new StmtNode.Block(compile(stmt.statements));
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        if (interpreter.interactive_mode) {
+            return new StmtNode.Echo(globals, compile(stmt.expression));
+        }
+        return new StmtNode.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        return new StmtNode.Function(stmt, compile(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        Stmt.Function[] methods = stmt.methods.toArray(new Stmt.Function[0]);
+        StmtNode[][] methodBodies = new StmtNode[methods.length][];
+        for (int i = 0; i < methods.length; i++) {
+            methodBodies[i] = compile(methods[i].body);
+        }
+
+        Stmt.Function[] staticMethods = stmt.staticMethods.toArray(new Stmt.Function[0]);
+        StmtNode[][] staticBodies = new StmtNode[staticMethods.length][];
+        for (int i = 0; i < staticMethods.length; i++) {
+            staticBodies[i] = compile(staticMethods[i].body);
+        }
+
+        return new StmtNode.Class(stmt.name, stmt.captured, compile(stmt.superclass),
+                stmt.superclass == null ? null : stmt.superclass.name,
+                methods, methodBodies, staticMethods, staticBodies);
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        return new StmtNode.Return(compile(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        return new StmtNode.If(compile(stmt.condition),
+                compile(stmt.thenBranch), compile(stmt.elseBranch));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        return new StmtNode.Var(stmt.name.lexeme, compile(stmt.initializer), stmt.captured);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        if (stmt.body instanceof Stmt.Block && !((Stmt.Block) stmt.body).sharesFrame) {
+            return new StmtNode.ScopedWhile(compile(stmt.condition),
+                    compile(((Stmt.Block) stmt.body).statements), compile(stmt.increment));
+        }
+        return new StmtNode.While(compile(stmt.condition), compile(stmt.body), compile(stmt.increment));
+    }
+
+    // Expressions
+
+    @Override
+    public ExprNode visitTernaryExpr(Expr.Ternary expr) {
+        return new ExprNode.Ternary(compile(expr.condition), compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth == -1) {
+            return new ExprNode.GlobalSet(globals, expr.name, compile(expr.value));
+        }
+        if (expr.depth == Resolver.UPVALUE) return new ExprNode.UpvalueSet(expr.slot, compile(expr.value));
+        if (expr.captured) return new ExprNode.CellSet(expr.depth, expr.slot, compile(expr.value));
+        return new ExprNode.LocalSet(expr.depth, expr.slot, compile(expr.value));
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case COMMA: return new ExprNode.Comma(operator, left, right);
+            case GREATER: return new ExprNode.Greater(operator, left, right);
+            case GREATER_EQUAL: return new ExprNode.GreaterEqual(operator, left, right);
+            case LESS: return new ExprNode.Less(operator, left, right);
+            case LESS_EQUAL: return new ExprNode.LessEqual(operator, left, right);
+            case BANG_EQUAL: return new ExprNode.NotEqual(operator, left, right);
+            case EQUAL_EQUAL: return new ExprNode.Equal(operator, left, right);
+            case MINUS: return new ExprNode.Subtract(operator, left, right);
+            case SLASH: return new ExprNode.Divide(operator, left, right);
+            case STAR: return new ExprNode.Multiply(operator, left, right);
+            case PLUS: return new ExprNode.Add(operator, left, right);
+        }
+        // Unreachable, the Parser only builds binary expressions from the operators above
+        throw new RuntimeError(operator, "Unknown binary operator.");
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            return new ExprNode.Invoke(interpreter, expr.paren, compile(get.object), get.name, get.cache, arguments,
+                    expr.isTailCall);
+        }
+        return new ExprNode.Call(interpreter, expr.paren, compile(expr.callee), arguments, expr.isTailCall);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.Get(compile(expr.object), expr.name, expr.cache);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        // Grouping only matters to the Parser
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLambdaExpr(Expr.Lambda expr) {
+        // The stand-in declaration the Resolver made for it
+        return new ExprNode.Lambda(expr.function, compile(expr.body));
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        if (expr.operator.type == TokenType.OR) {
+            return new ExprNode.Or(compile(expr.left), compile(expr.right));
+        }
+        return new ExprNode.And(compile(expr.left), compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value), expr.cache);
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot, expr.captured);
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        return new ExprNode.Super(variable(expr.keyword, expr.depth, expr.slot, true),
+                variable(expr.keyword, expr.thisDepth, expr.thisSlot, expr.thisCaptured), expr.method);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            return new ExprNode.Negate(expr.operator, compile(expr.right));
+        }
+        return new ExprNode.Not(compile(expr.right));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot, expr.captured);
+    }
+
+    private ExprNode variable(Token name, int depth, int slot, boolean captured) {
+        if (depth == -1) return new ExprNode.GlobalGet(globals, name);
+        if (depth == Resolver.UPVALUE) return new ExprNode.UpvalueGet(slot);
+        if (captured) return new ExprNode.CellGet(depth, slot);
+        if (depth == 0) return new ExprNode.LocalGet(slot);
+        return new ExprNode.EnclosingGet(depth, slot);
+    }
+}
@@ -0,0 +1,31 @@
+package com.craftinginterpreters.Lox;
+
+/** A function whose body has been built into executable nodes
+ * It's a LoxFunction as far as classes and instances are concerned, so binding and inheritance work unchanged.
+ * */
+class NodeFunction extends LoxFunction {
+    private final StmtNode[] body;
+
+    NodeFunction(Stmt.Function declaration, StmtNode[] body, Cell[] upvalues, boolean isInitalizer) {
+        this(declaration, body, upvalues, isInitalizer, null);
+    }
+
+    private NodeFunction(Stmt.Function declaration, StmtNode[] body, Cell[] upvalues, boolean isInitalizer,
+                         LoxInstance receiver) {
+        super(declaration, upvalues, isInitalizer, receiver);
+        this.body = body;
+    }
+
+    @Override
+    LoxFunction bind(LoxInstance instance) {
+        return new NodeFunction(declaration, body, upvalues, isInitalizer, instance);
+    }
+
+    @Override
+    Object run(Interpreter interpreter, LoxInstance instance, Environment environment) {
+        Object result = StmtNode.executeAll(body, environment);
+
+        if (isInitalizer) return instance;
+        return Completion.returnValue(result);
+    }
+}
@@ -0,0 +1,32 @@
+package com.craftinginterpreters.Lox;
+
+/** Shared boxes for the numbers that turn up most
+ * Lox numbers are Doubles. The Interpreter works nested arithmetic out on raw doubles and only boxes the result at
+ * the top (see Interpreter.arithmetic), and that box comes from here: the whole numbers and halves from -1024 up to
+ * 1023.5 are made once and handed out again, everything else gets a new Double.
+ * */
+final class Numbers {
+    private static final int LOW = -1024;
+    private static final int HIGH = 1024;
+    // Index 2 * (value - LOW), so the whole numbers are the even slots and the halves the odd ones
+    private static final Double[] CACHE = new Double[2 * (HIGH - LOW)];
+
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = LOW + i / 2.0;
+        }
+    }
+
+    private Numbers() {}
+
+    static Double box(double value) {
+        double twice = 2 * (value - LOW);
+        int index = (int) twice;
+        // -0 isn't the 0 in the cache, and NaN fails the first test
+        if (index == twice && index >= 0 && index < CACHE.length
+                && (value != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            return CACHE[index];
+        }
+        return value;
+    }
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.Lox;
+
+/** A method that has been pulled off an instance, and so has to remember what 'this' is */
+class ObjBoundMethod {
+    final Object receiver;
+    final ObjClosure method;
+
+    ObjBoundMethod(Object receiver, ObjClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -0,0 +1,23 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/** A class in the VM
+ * Inherited methods are copied down when the class is created, so lookups never walk the superclass chain.
+ * */
+class ObjClass {
+    final String name;
+    final Map<String, ObjClosure> methods = new IdentityHashMap<>();
+    final Map<String, ObjClosure> staticMethods = new IdentityHashMap<>();
+    ObjClosure initializer = null;
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return "<Class " + name + ">";
+    }
+}
@@ -0,0 +1,19 @@
+package com.craftinginterpreters.Lox;
+
+/** The compiled form of a function body, shared by every closure created from it */
+class ObjFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+
+    ObjFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
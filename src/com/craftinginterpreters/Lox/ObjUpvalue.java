@@ -0,0 +1,17 @@
+package com.craftinginterpreters.Lox;
+
+/** A captured variable
+ * While open it points at a slot on the VM stack, once that slot goes out of scope the value is moved into
+ * closed and the upvalue carries on by itself.
+ * */
+class ObjUpvalue {
+    // Stack slot while open, -1 once closed
+    int slot;
+    Object closed;
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot, ObjUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
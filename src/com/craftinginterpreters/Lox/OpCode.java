@@ -0,0 +1,52 @@
+package com.craftinginterpreters.Lox;
+
+/** Instruction set for the bytecode VM
+ * Operands follow the opcode in the chunk: a "u8" is one byte, a "u16" is two bytes, high byte first.
+ * These are plain byte constants rather than an enum so the VM can switch on the raw code array.
+ * */
+final class OpCode {
+    private OpCode() {}
+
+    static final byte CONSTANT = 0;        // u16 constant index
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;       // u8 slot
+    static final byte SET_LOCAL = 6;       // u8 slot
+    static final byte GET_GLOBAL = 7;      // u16 name constant
+    static final byte DEFINE_GLOBAL = 8;   // u16 name constant
+    static final byte SET_GLOBAL = 9;      // u16 name constant
+    static final byte GET_UPVALUE = 10;    // u8 upvalue index
+    static final byte SET_UPVALUE = 11;    // u8 upvalue index
+    static final byte GET_PROPERTY = 12;   // u16 name constant
+    static final byte SET_PROPERTY = 13;   // u16 name constant
+    static final byte GET_SUPER = 14;      // u16 name constant
+    static final byte EQUAL = 15;
+    static final byte NOT_EQUAL = 16;
+    static final byte GREATER = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS = 19;
+    static final byte LESS_EQUAL = 20;
+    static final byte ADD = 21;
+    static final byte SUBTRACT = 22;
+    static final byte MULTIPLY = 23;
+    static final byte DIVIDE = 24;
+    static final byte NOT = 25;
+    static final byte NEGATE = 26;
+    static final byte PRINT = 27;
+    static final byte ECHO = 28;           // interactive mode expression statement
+    static final byte JUMP = 29;           // u16 forward offset
+    static final byte JUMP_IF_FALSE = 30;  // u16 forward offset, leaves the condition on the stack
+    static final byte LOOP = 31;           // u16 backward offset
+    static final byte CALL = 32;           // u8 argument count
+    static final byte INVOKE = 33;         // u16 name constant, u8 argument count
+    static final byte SUPER_INVOKE = 34;   // u16 name constant, u8 argument count
+    static final byte CLOSURE = 35;        // u16 function constant, then (u8 isLocal, u8 index) per upvalue
+    static final byte CLOSE_UPVALUE = 36;
+    static final byte RETURN = 37;
+    static final byte CLASS = 38;          // u16 name constant
+    static final byte INHERIT = 39;
+    static final byte METHOD = 40;         // u16 name constant
+    static final byte STATIC_METHOD = 41;  // u16 name constant
+}
@@ -0,0 +1,363 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Simplifies the resolved tree before anything runs it
+ * Folds operators whose operands are literals, drops branches that can never run, strips Grouping nodes and the
+ * left side of a comma when evaluating it can't do anything.
+ * Nothing is folded that would have been a runtime error, so `"a" - 1` still fails on the right line.
+ *
+ * Runs after the Resolver, so a node is only rebuilt when one of its children changed and the resolved fields are
+ * copied across. Statements are only ever removed whole, and never declarations, so the slots the Resolver handed
+ * out stay put. Moving things out of loops is done before resolving, by the Hoister.
+ * */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(List<Stmt> statements) {
+        return optimizeStatements(statements);
+    }
+
+    private List<Stmt> optimizeStatements(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt optimized = optimize(statement);
+            if (optimized != null) result.add(optimized);
+            changed |= optimized != statement;
+        }
+        return changed ? result : statements;
+    }
+
+    // Returns null when the statement can be left out entirely
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // For a statement that has to stay a statement, like the branch of an if
+    private Stmt optimizeBranch(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        if (optimized == null) {
+            // Nothing to declare, so it can run wherever it is
+            Stmt.Block empty = new Stmt.Block(new ArrayList<>());
+            empty.sharesFrame = true;
+            return empty;
+        }
+        return optimized;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private List<Expr> optimizeExpressions(List<Expr> exprs) {
+        List<Expr> result = new ArrayList<>(exprs.size());
+        boolean changed = false;
+        for (Expr expr : exprs) {
+            Expr optimized = optimize(expr);
+            result.add(optimized);
+            changed |= optimized != expr;
+        }
+        return changed ? result : exprs;
+    }
+
+    // Statements
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimizeStatements(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.sharesFrame = stmt.sharesFrame;
+        return block;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return function(stmt);
+    }
+
+    private Stmt.Function function(Stmt.Function stmt) {
+        // --lazy hasn't parsed the body yet
+        if (stmt.lazy != null && stmt.lazy.isPending()) return stmt;
+        List<Stmt> body = optimizeStatements(stmt.body);
+        if (body == stmt.body) return stmt;
+        return function(stmt, body);
+    }
+
+    // A copy of the function with a new body
+    private static Stmt.Function function(Stmt.Function stmt, List<Stmt> body) {
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.isMethod = stmt.isMethod;
+        function.upvalues = stmt.upvalues;
+        function.capturedParams = stmt.capturedParams;
+        function.captured = stmt.captured;
+        return function;
+    }
+
+    private List<Stmt.Function> functions(List<Stmt.Function> functions) {
+        List<Stmt.Function> result = new ArrayList<>(functions.size());
+        boolean changed = false;
+        for (Stmt.Function function : functions) {
+            Stmt.Function optimized = function(function);
+            result.add(optimized);
+            changed |= optimized != function;
+        }
+        return changed ? result : functions;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = functions(stmt.methods);
+        List<Stmt.Function> staticMethods = functions(stmt.staticMethods);
+        if (methods == stmt.methods && staticMethods == stmt.staticMethods) return stmt;
+        Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods, staticMethods);
+        klass.captured = stmt.captured;
+        return klass;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal) condition).value)) return optimize(stmt.thenBranch);
+            if (stmt.elseBranch == null) return null;
+            return optimize(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = optimizeBranch(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimizeBranch(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.captured = stmt.captured;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        Stmt body = null;
+        Expr increment = stmt.increment;
+        boolean runs = !(condition instanceof Expr.Literal) || Interpreter.isTruthy(((Expr.Literal) condition).value);
+        if (runs) {
+            body = optimizeBranch(stmt.body);
+            if (increment != null) increment = optimize(increment);
+        }
+        if (!runs) return null;
+
+        if (condition == stmt.condition && body == stmt.body && increment == stmt.increment) return stmt;
+        return new Stmt.While(condition, body, increment);
+    }
+
+    private boolean isArithmetic(TokenType operator) {
+        return operator == TokenType.PLUS || operator == TokenType.MINUS
+                || operator == TokenType.STAR || operator == TokenType.SLASH;
+    }
+
+    // Expressions
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = optimize(expr.condition);
+        if (condition instanceof Expr.Literal) {
+            return Interpreter.isTruthy(((Expr.Literal) condition).value) ? optimize(expr.left) : optimize(expr.right);
+        }
+
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (condition == expr.condition && left == expr.left && right == expr.right) return expr;
+        return new Expr.Ternary(condition, left, right);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.captured = expr.captured;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (expr.operator.type == TokenType.COMMA && isPure(left)) return right;
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Expr folded = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (folded != null) return folded;
+        }
+
+        Expr.Binary binary = expr;
+        if (left != expr.left || right != expr.right) binary = new Expr.Binary(left, expr.operator, right);
+        // A + could be joining strings, unless one side is sure to be a number. See Interpreter.isArithmetic
+        if (expr.operator.type == TokenType.PLUS) {
+            binary.arithmetic = Interpreter.isArithmetic(left) || Interpreter.isArithmetic(right);
+        } else {
+            binary.arithmetic = isArithmetic(expr.operator.type);
+        }
+        return binary;
+    }
+
+    // Null when the operation would fail at runtime and has to be left for the Interpreter to report
+    private Expr fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL: return new Expr.Literal(Interpreter.isEqual(left, right));
+            case BANG_EQUAL: return new Expr.Literal(!Interpreter.isEqual(left, right));
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return new Expr.Literal((String) left + (String) right);
+                }
+                break;
+        }
+
+        if (!(left instanceof Double && right instanceof Double)) return null;
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator) {
+            case PLUS: return new Expr.Literal(a + b);
+            case MINUS: return new Expr.Literal(a - b);
+            case STAR: return new Expr.Literal(a * b);
+            case SLASH: return new Expr.Literal(a / b);
+            case GREATER: return new Expr.Literal(a > b);
+            case GREATER_EQUAL: return new Expr.Literal(a >= b);
+            case LESS: return new Expr.Literal(a < b);
+            case LESS_EQUAL: return new Expr.Literal(a <= b);
+        }
+        return null;
+    }
+
+    // Expressions that can be thrown away without anyone noticing. Globals can fail if they were never defined
+    private boolean isPure(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.This || expr instanceof Expr.Lambda) return true;
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).depth != -1;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeExpressions(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        Expr.Call call = new Expr.Call(callee, expr.paren, arguments);
+        call.isTailCall = expr.isTailCall;
+        return call;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        if (expr.lazy != null && expr.lazy.isPending()) return expr;
+        List<Stmt> body = optimizeStatements(expr.body);
+
+        if (body == expr.body) return expr;
+        Expr.Lambda lambda = new Expr.Lambda(expr.line, expr.params, body);
+        lambda.function = function(expr.function, body);
+        return lambda;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        if (left instanceof Expr.Literal) {
+            // The left side decides it, or else the value is whatever the right side gives
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            if (truthy == (expr.operator.type == TokenType.OR)) return left;
+            return optimize(expr.right);
+        }
+
+        Expr right = optimize(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (expr.operator.type == TokenType.MINUS && value instanceof Double) {
+                return new Expr.Literal(-(double) value);
+            }
+        }
+
+        Expr.Unary unary = expr;
+        if (right != expr.right) unary = new Expr.Unary(expr.operator, right);
+        unary.arithmetic = expr.operator.type == TokenType.MINUS;
+        return unary;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
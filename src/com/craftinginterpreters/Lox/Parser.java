@@ -1,19 +1,39 @@
 package com.craftinginterpreters.Lox;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Set;
 import static com.craftinginterpreters.Lox.TokenType.*;
 
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    // Tokens are pulled from the Scanner (or a TokenBuffer) as they're needed, and only previous, current and next
+    // are held on to. They're kept in parallel arrays indexed by slot, which go round in turn as the parse moves
+    // along, and a slot is only made into a Token when the parser actually keeps it (for the tree or an error). So
+    // all the punctuation that's just checked and stepped over never turns into an object. The next token isn't
+    // even scanned until something looks that far ahead.
+    private static final int WINDOW = 3;
+    private final TokenSource scanner;
+    private final TokenType[] types = new TokenType[WINDOW];
+    private final String[] lexemes = new String[WINDOW];
+    private final Object[] literals = new Object[WINDOW];
+    private final int[] lines = new int[WINDOW];
+    private final Token[] tokens = new Token[WINDOW];
     private int current = 0;
+    private boolean scannedNext = false;
+    // Every name assigned to anywhere, bodies --lazy skipped included (going by `name =` for those). See Hoister
+    final Set<String> assigned = new HashSet<>();
+    // Whether this parse reported any errors
+    boolean hadError = false;
 
-    Parser(List<Token> tokens) {
-        // Parse through the list of tokens and return the syntax tree for the parser to a caller
-        this.tokens = tokens;
+    Parser(TokenSource scanner) {
+        // Parse through the tokens and return the syntax tree for the parser to a caller
+        this.scanner = scanner;
+        scan(current);
     }
 
     List<Stmt> parse(){
@@ -25,13 +45,18 @@ public class Parser {
         return statements;
     }
 
+    // A function body kept back by --lazy, which still ends with its closing brace
+    List<Stmt> body() {
+        return block();
+    }
+
 
     // Syntax tree elements
     // Statements
 
     private Stmt declaration() {
         try {
-            if (peek().type == FUN && peekNext().type == IDENTIFIER) {
+            if (check(FUN) && peekNextType() == IDENTIFIER) {
                 advance();
                 return function("function");
             }
@@ -47,7 +72,8 @@ public class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if (match(EQUAL)) {
@@ -58,7 +84,8 @@ public class Parser {
     }
 
     private Stmt classDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect class name.");
+        consume(IDENTIFIER, "Expect class name.");
+        Token name = previous();
 
         Expr.Variable superclass = null;
             if (match(LESS)) {
@@ -92,7 +119,7 @@ public class Parser {
         consume(RIGHT_PAREN, "Expect ')' after condition");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(condition, body, null);
     }
 
     private Stmt statement() {
@@ -134,14 +161,10 @@ public class Parser {
         // Getting the body
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(
-                    body,
-                    new Stmt.Expression(increment)
-            ));
-        }
+        // The increment stays part of the loop rather than being tacked onto the end of the body in a block of its
+        // own, which cost an environment every time round
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(condition, body, increment);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -199,7 +222,8 @@ public class Parser {
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+        consume(IDENTIFIER, "Expect " + kind + " name.");
+        Token name = previous();
         consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(RIGHT_PAREN)) {
@@ -208,12 +232,19 @@ public class Parser {
                     error(peek(), "Cannot have more than 255 parameters.");
                 }
 
-                parameters.add(consume(IDENTIFIER, "Expect parameters name."));
+                consume(IDENTIFIER, "Expect parameters name.");
+
+                parameters.add(previous());
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+        if (LazyBody.enabled) {
+            Stmt.Function function = new Stmt.Function(name, parameters, new ArrayList<>());
+            function.lazy = skipBody();
+            return function;
+        }
         List<Stmt> body = block();
         return new Stmt.Function(name, parameters, body);
     }
@@ -246,6 +277,7 @@ public class Parser {
 
             if (expr instanceof Expr.Variable) {
                 Token name = ( (Expr.Variable) expr).name;
+                assigned.add(name.lexeme);
                 return new Expr.Assign(name, value);
             } else if (expr instanceof Expr.Get) {
                 Expr.Get get = (Expr.Get)expr;
@@ -365,8 +397,9 @@ public class Parser {
             if (match(LEFT_PAREN)) {
                 expr = finishCall(expr);
             } else if(match(DOT)) {
-                Token name = consume(IDENTIFIER,
+                consume(IDENTIFIER,
                         "Expect property name after '.'.");
+                Token name = previous();
                 expr = new Expr.Get(expr, name);
             } else {
                 break;
@@ -388,7 +421,9 @@ public class Parser {
             } while (match(COMMA));
         }
 
-        Token paren = consume(RIGHT_PAREN, "Expect ')' after function arguments");
+        consume(RIGHT_PAREN, "Expect ')' after function arguments");
+
+        Token paren = previous();
 
         return new Expr.Call(callee, paren, arguments);
     }
@@ -402,12 +437,20 @@ public class Parser {
                 error(peek(), "Cannot have more than 255 parameters");
             }
 
-            parameters.add(consume(IDENTIFIER, "Expect parameters name."));
+            consume(IDENTIFIER, "Expect parameters name.");
+
+            parameters.add(previous());
         } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(LEFT_BRACE, "Expect '(' before function literal body");
+        if (LazyBody.enabled) {
+            LazyBody lazy = skipBody();
+            Expr.Lambda function = new Expr.Lambda(previous().line, parameters, new ArrayList<>());
+            function.lazy = lazy;
+            return function;
+        }
         List<Stmt> body = block();
         return new Expr.Lambda(previous().line, parameters, body);
     }
@@ -420,7 +463,8 @@ public class Parser {
         if (match(SUPER)) {
             Token keyword = previous();
             consume(DOT, "Expect '.' after 'super'.");
-            Token method = consume(IDENTIFIER, "Expect superclass method name.");
+            consume(IDENTIFIER, "Expect superclass method name.");
+            Token method = previous();
             return new Expr.Super(keyword, method);
         }
 
@@ -447,6 +491,29 @@ public class Parser {
         throw error(peek(), "Expect Expression");
     }
 
+    // With --lazy, a function body is only brace-matched and its tokens kept to parse when it's called, see LazyBody
+    private LazyBody skipBody() {
+        TokenBuffer body = new TokenBuffer();
+        Set<String> names = new LinkedHashSet<>();
+        int depth = 1;
+        while (!isAtEnd()) {
+            TokenType type = types[current];
+            if (type == IDENTIFIER && peekNextType() == EQUAL) assigned.add(lexemes[current]);
+            if (type == IDENTIFIER || type == THIS) names.add(lexemes[current]);
+            // `super.method` needs 'this' as well
+            if (type == SUPER) {
+                names.add(lexemes[current]);
+                names.add(Names.intern("this"));
+            }
+            body.add(type, lexemes[current], literals[current], lines[current]);
+            advance();
+
+            if (type == LEFT_BRACE) depth++;
+            if (type == RIGHT_BRACE && --depth == 0) return new LazyBody(body, names);
+        }
+        throw error(peek(), "Expect '}' after block");
+    }
+
     // helper functions
 
     private boolean match(TokenType...types) {
@@ -463,53 +530,86 @@ public class Parser {
 
     // Error consuming tokens
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    // Anything that wants the token it consumed takes it from previous()
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw error(peek(), message);
     }
 
-    private Token query(TokenType type, String message) {
-        if (check(type)) return advance();
+    private void query(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw new NotDoneErr(message);
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return types[current] == type;
     }
 
-    private Token advance() {
-        if (!isAtEnd()) current ++;
-        return previous();
+    private void advance() {
+        if (!isAtEnd()) {
+            int next = (current + 1) % WINDOW;
+            if (!scannedNext) scan(next);
+            scannedNext = false;
+            current = next;
+        }
     }
     // Primitive operations
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return types[current] == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return token(current);
     }
 
-    private Token peekNext() {
-        return tokens.get(current+1);
+    private TokenType peekNextType() {
+        int next = (current + 1) % WINDOW;
+        if (!scannedNext) {
+            scan(next);
+            scannedNext = true;
+        }
+        return types[next];
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return token((current + WINDOW - 1) % WINDOW);
+    }
+
+    // Reads the Scanner's next token into a slot
+    private void scan(int slot) {
+        types[slot] = scanner.nextToken();
+        lexemes[slot] = scanner.lexeme();
+        literals[slot] = scanner.literal();
+        lines[slot] = scanner.line();
+        tokens[slot] = null;
+    }
+
+    private Token token(int slot) {
+        if (tokens[slot] == null) {
+            tokens[slot] = new Token(types[slot], lexemes[slot], literals[slot], lines[slot]);
+        }
+        return tokens[slot];
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        Lox.report(token, message);
+        hadError = true;
         return new ParseError();
         }
 
     private void synchronize() {
         advance();
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (types[(current + WINDOW - 1) % WINDOW] == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (types[current]) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -0,0 +1,88 @@
+package com.craftinginterpreters.Lox;
+
+/** An inline cache for one property access in the source, `object.name` or `object.name = value`
+ * Remembers what the lookup came to for the last few shapes seen at that spot: the field's slot, or the method it
+ * found on the class. Most sites only ever see one or two shapes, so after the first lookup a get is a reference
+ * comparison and an array load. Past MAX_SHAPES the site is megamorphic and anything new goes the slow way.
+ * */
+final class PropertyCache {
+    private static final int MAX_SHAPES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_SHAPES];
+    private final int[] slots = new int[MAX_SHAPES];
+    // Gets: the method when the name isn't a field
+    private final LoxFunction[] methods = new LoxFunction[MAX_SHAPES];
+    // Sets: the shape the instance moves to when the field is new
+    private final Shape[] transitions = new Shape[MAX_SHAPES];
+    private int count = 0;
+
+    Object get(LoxInstance instance, Token name) {
+        int entry = find(instance, name);
+        if (entry == -1) return instance.get(name);
+        if (methods[entry] != null) return methods[entry].bind(instance);
+        return instance.fields[slots[entry]];
+    }
+
+    // The same as get, except that a method comes back unbound for the caller to invoke() on the instance
+    Object getForCall(LoxInstance instance, Token name) {
+        int entry = find(instance, name);
+        if (entry == -1) return instance.get(name);
+        if (methods[entry] != null) return methods[entry];
+        return instance.fields[slots[entry]];
+    }
+
+    // The cache entry for the instance's shape, adding it if there's room. -1 if it can't be cached
+    private int find(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) return i;
+        }
+
+        // Classes don't have a shape, their properties are their static methods
+        if (shape == null || count == MAX_SHAPES) return -1;
+
+        int slot = shape.slotOf(name.lexeme);
+        LoxFunction method = null;
+        if (slot == -1) {
+            method = shape.klass.findMethod(name.lexeme);
+            // Leave the error to LoxInstance
+            if (method == null) return -1;
+        }
+        add(shape, slot, method, null);
+        return count - 1;
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                if (transitions[i] != null) instance.addField(transitions[i]);
+                instance.fields[slots[i]] = value;
+                return;
+            }
+        }
+
+        if (shape == null || count == MAX_SHAPES) {
+            instance.set(name, value);
+            return;
+        }
+
+        int slot = shape.slotOf(name.lexeme);
+        Shape next = null;
+        if (slot == -1) {
+            next = shape.with(name.lexeme);
+            slot = shape.size;
+            instance.addField(next);
+        }
+        add(shape, slot, null, next);
+        instance.fields[slot] = value;
+    }
+
+    private void add(Shape shape, int slot, LoxFunction method, Shape transition) {
+        shapes[count] = shape;
+        slots[count] = slot;
+        methods[count] = method;
+        transitions[count] = transition;
+        count++;
+    }
+}
@@ -1,33 +1,71 @@
 package com.craftinginterpreters.Lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
+    // The depth of a variable that's one of the function's upvalues, with its slot the index of the upvalue
+    static final int UPVALUE = -2;
+
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // Parallel to scopes: the locals declared in each scope, in order, so a local's index is its frame slot
+    private final Stack<List<Local>> locals = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
+    // The function being resolved, with the top level counting as one that can't capture anything
+    private FunctionScope functionScope = new FunctionScope(null, 0);
+    // Whether this pass reported any errors
+    boolean hadError = false;
+
+
+    Resolver() {}
+
+    // A local variable and everything that reads or writes it. Whether it lives in a Cell isn't known until its
+    // scope ends, since a closure anywhere after the declaration might capture it, so they're all told then
+    private static class Local {
+        final String name;
+        // The Var, Function or Class that declared it, null for 'this', 'super' and parameters
+        final Object declaration;
+        final List<Object> uses = new ArrayList<>();
+        boolean captured = false;
+
+        Local(String name, Object declaration) {
+            this.name = name;
+            this.declaration = declaration;
+        }
+    }
 
+    // What a function captures from outside itself, see Environment.capture
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        // The index in scopes of the function's own outermost scope, anything before it belongs to someone else
+        final int base;
+        // The name of each upvalue, and where to find it when the closure is made
+        final List<String> upvalues = new ArrayList<>();
+        final List<Integer> captures = new ArrayList<>();
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+        FunctionScope(FunctionScope enclosing, int base) {
+            this.enclosing = enclosing;
+            this.base = base;
+        }
     }
 
     // for handling returns and other things
-    private enum ClassType {
+    enum ClassType {
         NONE,
         CLASS,
         SUBCLASS
     }
 
-    private enum FunctionType {
+    enum FunctionType {
         NONE,
         FUNCTION,
         METHOD,
         INITIALIZER,
+        STATIC_METHOD,
     }
 
     @Override
@@ -35,13 +73,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         // Prevent circular loops of inheritance
         if (stmt.superclass != null &&
                 stmt.name.lexeme.equals(stmt.superclass.name.lexeme)){
-            Lox.error(stmt.superclass.name,
+            error(stmt.superclass.name,
                     "A class cannot inherit from itself.");
         }
 
@@ -53,12 +91,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            declare("super", null);
+            define("super");
         }
 
-
-        beginScope();
-        scopes.peek().put("this", true);
+        // 'this' isn't given a scope of its own, each method declares it as the first slot of its own frame so
+        // calling a method doesn't need an environment just to hold it. See resolveFunction
 
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
@@ -68,12 +106,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         // This is added so that static methods don't hold a copy of `this`, hence they just work like funcitons
         // the same way those bound to instances after creation are.
         for (Stmt.Function method : stmt.staticMethods) {
-            FunctionType declaration = FunctionType.FUNCTION;
+            FunctionType declaration = FunctionType.STATIC_METHOD;
             resolveFunction(method, declaration);
         }
 
@@ -89,16 +125,27 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt (Stmt.Block stmt) {
-        beginScope();
+        if (scopes.isEmpty()) {
+            // Outside every function and block, so there's no frame to put its locals in but its own
+            beginScope();
+            resolve(stmt.statements);
+            endScope();
+            return null;
+        }
+
+        // Anywhere else the block's locals just go on the end of the scope around it, and come off again once the
+        // block's done. Captured ones are in Cells, so sharing a frame doesn't change what a closure sees
+        stmt.sharesFrame = true;
+        int count = locals.peek().size();
         resolve(stmt.statements);
-        endScope();
+        endBlock(count);
         return null;
     }
 
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -107,7 +154,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -138,11 +185,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         // user added expression
         if (!scopes.isEmpty() &&
         scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
+            error(expr.name,
                     "cannot read local variable in it's own initializer");
         }
 
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth != -1) expr.slot = slotOf(expr.depth, expr.name.lexeme, expr);
         return null;
     }
 
@@ -155,19 +203,40 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt (Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE){
-            Lox.error(stmt.keyword, "Cannot return from top-level code, ");
+            error(stmt.keyword, "Cannot return from top-level code, ");
         }
         if (stmt.value != null) {
             resolve(stmt.value);
+            // An initializer returns 'this' whatever happens, so nothing in it is in tail position
+            if (currentFunction != FunctionType.INITIALIZER) markTailCalls(stmt.value);
         }
 
         return null;
     }
 
+    // Finds the calls whose value is returned as it is, which the interpreter can run after leaving the function
+    // rather than from inside it
+    private void markTailCalls(Expr expr) {
+        if (expr instanceof Expr.Call) {
+            ((Expr.Call) expr).isTailCall = true;
+        } else if (expr instanceof Expr.Grouping) {
+            markTailCalls(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Ternary) {
+            markTailCalls(((Expr.Ternary) expr).left);
+            markTailCalls(((Expr.Ternary) expr).right);
+        } else if (expr instanceof Expr.Logical) {
+            // The left side is tested, but the right is returned as it is
+            markTailCalls(((Expr.Logical) expr).right);
+        } else if (expr instanceof Expr.Binary && ((Expr.Binary) expr).operator.type == TokenType.COMMA) {
+            markTailCalls(((Expr.Binary) expr).right);
+        }
+    }
+
     @Override
     public Void visitWhileStmt (Stmt.While stmt) {
         resolve (stmt.condition);
         resolve (stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
         return null;
     }
     @Override
@@ -181,13 +250,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLambdaExpr(Expr.Lambda expr) {
-        // Fakes a FunctionStmt so we can pass it here easily
-        resolveFunction(new Stmt.Function(
-                null,
-                expr.params, expr.body
-                ),
-                FunctionType.FUNCTION
-        );
+        // Fakes a FunctionStmt so we can pass it here easily. It's kept on the lambda to be the declaration of every
+        // LoxFunction made from it
+        Stmt.Function function = new Stmt.Function(
+                new Token(TokenType.IDENTIFIER, "Lambda", null, expr.line), expr.params, expr.body);
+        function.lazy = expr.lazy;
+        expr.function = function;
+        resolveFunction(function, FunctionType.FUNCTION);
         return null;
 
     }
@@ -195,7 +264,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr){
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth != -1) expr.slot = slotOf(expr.depth, expr.name.lexeme, expr);
         return null;
     }
 
@@ -222,15 +292,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            error(expr.keyword,
                     "Cannot use 'this' outside of a class.");
             return null;
         }
-        if (currentClass == ClassType.CLASS && currentFunction != FunctionType.METHOD) {
-            Lox.error(expr.keyword,
+        if (currentFunction == FunctionType.STATIC_METHOD) {
+            error(expr.keyword,
                     "Cannot use 'this' in static method.");
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
+        if (expr.depth != -1) expr.slot = slotOf(expr.depth, expr.keyword.lexeme, expr);
         return null;
     }
 
@@ -238,16 +309,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitSuperExpr(Expr.Super expr) {
         // Ensure that 'super' only appears in appropriate enviroments
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            error(expr.keyword,
                     "Cannot use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS)
         {
-            Lox.error(expr.keyword,
+            error(expr.keyword,
                     "Cannot use 'super' in a class with no superclass.");
+        } else if (currentFunction == FunctionType.STATIC_METHOD) {
+            // There's no 'this' to call the superclass's method on
+            error(expr.keyword,
+                    "Cannot use 'super' in static method.");
         }
 
 
-        resolveLocal(expr, expr.keyword);
+        // 'super' is always an upvalue, since the only thing in its scope is methods. 'this' is the first slot of
+        // the method's frame, or an upvalue of a lambda inside one
+        expr.depth = resolveLocal(expr.keyword);
+        if (expr.depth != -1) expr.slot = slotOf(expr.depth, "super", null);
+        expr.thisDepth = resolveLocal("this");
+        if (expr.thisDepth != -1) expr.thisSlot = slotOf(expr.thisDepth, "this", expr);
         return null;
     }
 
@@ -293,15 +373,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private int resolveLocal(Token name) {
+        return resolveLocal(name.lexeme);
+    }
+
+    private int resolveLocal(String name) {
         /* This is the *special* function that makes closures work
-        This adds to the interpreter we inject to the resolver that
-        We should add a entry in the locals: dict<Expr, int> mapping to describe how far up the chain we need the
-        the entity to be
+        This works out how far up the chain of environments the entity we're after is, which the caller stores on
+        the expression node (along with its slot) for the interpreter to use. -1 means it's a global, and UPVALUE
+        that it's a local of some function around this one, which this function captures (see upvalue)
 
-        Count down from current scope stack depth(zero-indexed)
+        Count down from current scope stack depth(zero-indexed), as far as the function's own scopes go
         Check IF the current scope in iteration contains the name
-        If it does contain the name, then Put into Interpreter.locals the Expr and the depth it has to go
+        If it does contain the name, then return the depth it has to go
 
         Thus for
         ```
@@ -316,17 +400,66 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         Thus we have Scopes: scope1, scope2
         iteration 1: i = 1; scopes.get(1).containsKey(x) ->> FALSE
         Iteration 2: i = 0; scopes.get(0).containsKey(x) ->> TRUE
-        interperter.locals <- Expr = LiteralExpr("x"), scopes.size() - 1 - i ->> 2 -1 -0 ->> 1
+        depth of Variable("x") = scopes.size() - 1 - i ->> 2 -1 -0 ->> 1
 
         Now, when interpreter calls visitVariableExpr
         */
-        for (int i = scopes.size() - 1; i >= 0;i--){
-            if (scopes.get(i).containsKey(name.lexeme)) {
+        for (int i = scopes.size() - 1; i >= functionScope.base; i--){
+            if (scopes.get(i).containsKey(name)) {
                 // If it does contain the name
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                return scopes.size() - 1 - i;
             }
         }
+        return upvalue(functionScope, name) == -1 ? -1 : UPVALUE;
+    }
+
+    // The index of the name among the function's upvalues, capturing it the first time the function uses it, or -1
+    // if it isn't a local of any function around this one
+    private int upvalue(FunctionScope function, String name) {
+        int index = function.upvalues.indexOf(name);
+        if (index != -1 || function.enclosing == null) return index;
+
+        FunctionScope enclosing = function.enclosing;
+        int scope = function.base - 1;
+        while (scope >= enclosing.base && !scopes.get(scope).containsKey(name)) scope--;
+
+        int depth;
+        int slot;
+        if (scope >= enclosing.base) {
+            // One of the enclosing function's own locals, which is going to have to live in a Cell now. The closure
+            // is made in the innermost scope around it, so that's what the depth counts from
+            List<Local> declared = locals.get(scope);
+            slot = lastIndexOf(declared, name);
+            declared.get(slot).captured = true;
+            depth = function.base - 1 - scope;
+        } else {
+            // Further out than that, so the enclosing function has to capture it to hand it on
+            slot = upvalue(enclosing, name);
+            if (slot == -1) return -1;
+            depth = UPVALUE;
+        }
+        function.upvalues.add(name);
+        function.captures.add(depth);
+        function.captures.add(slot);
+        return function.upvalues.size() - 1;
+    }
+
+    // The slot for a variable at a depth resolveLocal gave, noting down the use of it if it's a local
+    private int slotOf(int depth, String name, Object use) {
+        if (depth == UPVALUE) return functionScope.upvalues.indexOf(name);
+
+        // The latest declaration of the name in that scope is the slot to use
+        List<Local> scope = locals.get(locals.size() - 1 - depth);
+        int slot = lastIndexOf(scope, name);
+        if (use != null) scope.get(slot).uses.add(use);
+        return slot;
+    }
+
+    private static int lastIndexOf(List<Local> scope, String name) {
+        for (int i = scope.size() - 1; i >= 0; i--) {
+            if (scope.get(i).name == name) return i;
+        }
+        return -1;
     }
 
     private void resolve(Expr expr) {
@@ -334,41 +467,161 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
+        resolveFunction(function, type, new FunctionScope(functionScope, scopes.size()));
+    }
+
+    private void resolveFunction(Stmt.Function function, FunctionType type, FunctionScope scope) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) function.isMethod = true;
+
+        if (function.lazy != null && function.lazy.isPending()) {
+            // Not parsed yet, but the closure still needs to know what to capture. That's every local out here the
+            // body mentions, which might be more than it uses (it could be a property, or shadowed inside) but is
+            // never less. The rest is remembered for when it is parsed
+            for (String name : function.lazy.names) {
+                if (!isOwn(function, name)) upvalue(scope, name);
+            }
+            function.upvalues = toArray(scope.captures);
+            function.lazy.upvalues = scope.upvalues;
+            function.lazy.classType = currentClass;
+            function.lazy.functionType = type;
+            currentFunction = enclosingFunction;
+            // --check-bodies: parsed right here instead, so its errors are reported with everything else's
+            if (LazyBody.checked && !function.lazy.check(function)) hadError = true;
+            return;
+        }
 
+        FunctionScope enclosingScope = functionScope;
+        functionScope = scope;
         beginScope();
+        if (function.isMethod) {
+            declare("this", null);
+            define("this");
+        }
         for (Token param : function.params) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(function.body);
+
+        // 'this' and the parameters are put in the frame by LoxFunction, which boxes any a closure captures itself
+        List<Local> frame = locals.peek();
+        int count = function.params.size() + (function.isMethod ? 1 : 0);
+        List<Integer> captured = new ArrayList<>();
+        for (int slot = 0; slot < count; slot++) {
+            if (frame.get(slot).captured) captured.add(slot);
+        }
+        function.capturedParams = toArray(captured);
         endScope();
 
+        function.upvalues = toArray(scope.captures);
+        functionScope = enclosingScope;
         currentFunction = enclosingFunction;
     }
 
+    private static boolean isOwn(Stmt.Function function, String name) {
+        if (function.isMethod && name.equals("this")) return true;
+        for (Token param : function.params) {
+            if (param.lexeme == name) return true;
+        }
+        return false;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) array[i] = values.get(i);
+        return array;
+    }
+
+    // Resolves a body --lazy held back (see LazyBody) once it's been parsed. Nothing around the declaration is in
+    // scope any more, only the upvalues the closure was made with, and anything else is a global as it was then
+    void resolveLazily(Stmt.Function function, LazyBody body) {
+        FunctionScope scope = new FunctionScope(null, 0);
+        scope.upvalues.addAll(body.upvalues);
+        for (int capture : function.upvalues) scope.captures.add(capture);
+        currentClass = body.classType;
+        resolveFunction(function, body.functionType, scope);
+    }
+
     private void resolve(Stmt stmt) {
         stmt.accept(this);
     }
 
+    private void error(Token token, String message) {
+        Lox.report(token, message);
+        hadError = true;
+    }
+
     private void beginScope() {
         scopes.push(new HashMap<String, Boolean>());
+        locals.push(new ArrayList<Local>());
     }
 
     private void endScope() {
         scopes.pop();
+        // Everything that could capture these has been resolved by now
+        for (Local local : locals.pop()) settle(local);
+    }
+
+    // Tells the local's declaration and every use of it whether it lives in a Cell
+    private static void settle(Local local) {
+        captured(local.declaration, local.captured);
+        for (Object use : local.uses) captured(use, local.captured);
+    }
+
+    // Takes a block's locals back off the scope it shared, see visitBlockStmt
+    private void endBlock(int count) {
+        List<Local> scope = locals.peek();
+        Map<String, Boolean> names = scopes.peek();
+        while (scope.size() > count) {
+            Local local = scope.remove(scope.size() - 1);
+            settle(local);
+            // The name might still be one of the scope's own, that the block shadowed
+            if (lastIndexOf(scope, local.name) == -1) names.remove(local.name);
+            else names.put(local.name, true);
+        }
+    }
+
+    // Tells a declaration or use of a local whether it lives in a Cell
+    private static void captured(Object node, boolean captured) {
+        if (node instanceof Expr.Variable) {
+            ((Expr.Variable) node).captured = captured;
+        } else if (node instanceof Expr.Assign) {
+            ((Expr.Assign) node).captured = captured;
+        } else if (node instanceof Expr.This) {
+            ((Expr.This) node).captured = captured;
+        } else if (node instanceof Expr.Super) {
+            ((Expr.Super) node).thisCaptured = captured;
+        } else if (node instanceof Stmt.Var) {
+            ((Stmt.Var) node).captured = captured;
+        } else if (node instanceof Stmt.Function) {
+            ((Stmt.Function) node).captured = captured;
+        } else if (node instanceof Stmt.Class) {
+            ((Stmt.Class) node).captured = captured;
+        }
+    }
+
+    private void declare (Token name, Object declaration) {
+        declare(name.lexeme, declaration);
     }
 
-    private void declare (Token name) {
+    private void declare (String name, Object declaration) {
         if (scopes.isEmpty()) return;
 
         Map<String, Boolean> scope = scopes.peek();
-        scope.put(name.lexeme, false);
+        scope.put(name, false);
+        // Every declaration gets a fresh slot, even one that shadows an earlier declaration in the same scope,
+        // since the interpreter hands out slots in the order the declarations are executed
+        locals.peek().add(new Local(name, declaration));
     }
 
     private void define (Token name) {
+        define(name.lexeme);
+    }
+
+    private void define (String name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().put(name, true);
     }
 }
@@ -0,0 +1,108 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.ArrayDeque;
+
+/** A Lox string built up with `+`, kept as its two halves until something needs the characters
+ * Joining strings in a loop would otherwise copy everything built so far every time round. Anything short is still
+ * joined straight away, so most strings stay plain Java Strings and a Lox string value is either one. The first
+ * time a Rope is printed or compared it's flattened, and the flat copy is kept.
+ * */
+final class Rope implements CharSequence {
+    // Joining anything up to this long is cheap enough to just do
+    private static final int FLAT_LIMIT = 256;
+
+    // Each a String or a Rope, both null once flattened
+    private Object left;
+    private Object right;
+    private final int length;
+    private String flat;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // `a + b` for two Lox strings
+    static Object concat(Object a, Object b) {
+        int length = length(a) + length(b);
+        if (length <= FLAT_LIMIT) return a.toString() + b.toString();
+
+        if (a instanceof Rope && b instanceof String) {
+            // Adding a bit at a time: top up the last piece rather than hanging yet another tiny one off the end
+            Rope rope = (Rope) a;
+            if (rope.flat == null && rope.right instanceof String
+                    && ((String) rope.right).length() + ((String) b).length() <= FLAT_LIMIT) {
+                return new Rope(rope.left, (String) rope.right + b, length);
+            }
+        }
+        return new Rope(a, b, length);
+    }
+
+    private static int length(Object string) {
+        if (string instanceof Rope) return ((Rope) string).length;
+        return ((String) string).length();
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flatten();
+        return flat;
+    }
+
+    private void flatten() {
+        char[] chars = new char[length];
+        int end = length;
+        // Filled in from the right with a stack of the pieces still to copy. A string built up in a loop is a tree
+        // as deep as the loop ran, much too deep to recurse through
+        ArrayDeque<Object> pieces = new ArrayDeque<>();
+        pieces.push(this);
+        while (!pieces.isEmpty()) {
+            Object piece = pieces.pop();
+            if (piece instanceof Rope && ((Rope) piece).flat == null) {
+                Rope rope = (Rope) piece;
+                pieces.push(rope.left);
+                pieces.push(rope.right);
+                continue;
+            }
+            String string = piece.toString();
+            end -= string.length();
+            string.getChars(0, string.length(), chars, end);
+        }
+        flat = new String(chars);
+        left = null;
+        right = null;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    // Equal to any string with the same characters, however it's held
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!isString(other) || length(other) != length) return false;
+        return toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -2,24 +2,42 @@
 // Use for scanning through source code and generating a set of tokens
 package com.craftinginterpreters.Lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 import static com.craftinginterpreters.Lox.TokenType.*;
 
 
-class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+/** Turns source into tokens, one at a time as the Parser asks for them
+ * The source is read through a window that only has to hold the token being scanned. Whatever came before it is
+ * dropped whenever more needs reading in, so scanning a file takes about the same memory whatever its size, and
+ * the Parser is working on the start of a file while the rest of it is still to be read.
+ * */
+class Scanner implements TokenSource {
+    private static final int BUFFER_SIZE = 8192;
+
+    // null once everything has been read into the buffer
+    private Reader reader;
+    private char[] buffer = new char[BUFFER_SIZE];
+    // buffer[start, current) is the token so far, buffer[current, limit) has been read in but not scanned yet
+    private int limit = 0;
+    // The token just scanned. Nothing here makes Token objects, the Parser only makes them for what it keeps
+    private TokenType type;
+    private String lexeme;
+    private Object literal;
     private int start = 0;
     private int current = 0;
     private int line = 1;
     private static final Map<String, TokenType> keywords;
 
     static {
-        keywords = new HashMap<>();
+        // Identifiers are interned before they're looked up here, and so are these literals, see Names
+        keywords = new IdentityHashMap<>();
         keywords.put("and",     AND);
         keywords.put("class",   CLASS);
         keywords.put("else",    ELSE);
@@ -40,21 +58,47 @@ class Scanner {
     }
 
     Scanner (String source) {
-        this.source = source;
+        this(new StringReader(source));
     }
 
-    //Main methods that create a list of tokens and spit them out
-    List<Token> scanTokens () {
-        while (!isAtEnd()){
+    Scanner (Reader reader) {
+        this.reader = reader;
+    }
+
+    // Scans the next token in the source, and EOF from then on once it runs out. Its lexeme, literal and line are
+    // there to read until the next one is scanned
+    @Override
+    public TokenType nextToken() {
+        type = null;
+        while (type == null) {
             start = current;
+            if (isAtEnd()) {
+                addToken(EOF, "", null);
+                break;
+            }
             scanToken();
         }
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        return type;
+    }
+
+    @Override
+    public String lexeme() {
+        return lexeme;
+    }
+
+    @Override
+    public Object literal() {
+        return literal;
+    }
+
+    @Override
+    public int line() {
+        return line;
     }
 
     private void scanToken () {
-        // This will scan through the source code, find the appropriate tokens, and add them to a list of tokens
+        // This will scan through the source code and find the next token, if there is one before the next bit of
+        // whitespace or comment
         char c = advance();
         switch(c){
             case '(': addToken(LEFT_PAREN); break;
@@ -80,7 +124,11 @@ class Scanner {
             // TODO multine comments of the form `/* */`  and nesting
             case '/':
                 if (match('/')) {
-                    while ( peek() != '\n' && !isAtEnd()) advance();
+                    while ( peek() != '\n' && !isAtEnd()) {
+                        advance();
+                        // Nothing in a comment needs keeping
+                        start = current;
+                    }
                 } else if (match('*')) {
                     advance();
                     multiline();
@@ -130,7 +178,7 @@ class Scanner {
         // Closing "
         advance();
         // Trim the surrounding quotes of the string before adding the token
-        String value = source.substring(start + 1, current -1);
+        String value = new String(buffer, start + 1, current - start - 2);
         addToken(STRING, value);
     }
 
@@ -145,8 +193,8 @@ class Scanner {
 
             while ( isDigit(peek())) advance();
         }
-        addToken(NUMBER,
-                Double.parseDouble( source.substring(start, current)));
+        String text = new String(buffer, start, current - start);
+        addToken(NUMBER, text, Double.parseDouble(text));
     }
 
     private void identifier() {
@@ -154,11 +202,11 @@ class Scanner {
         while (isAlphaNumeric(peek())) advance();
 
         // See if Identifier is a reserved word
-        String text = source.substring(start, current);
+        String text = Names.intern(buffer, start, current);
 
         TokenType type = keywords.get(text);
         if (type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(type, text, null);
     }
 
     // Multiline comment
@@ -169,6 +217,7 @@ class Scanner {
         // This will churn through a multiline comment until it reaches its end
         while (depth > 0 && !isAtEnd()) {
             char c = advance();
+            start = current;
             switch (c){
                 // jump to new line
                 case '\n': line ++; break;
@@ -187,7 +236,7 @@ class Scanner {
 
     private boolean match(char expected){
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (buffer[current] != expected) return false;
         // If it is sound, then step along the character and then return true
         current ++;
         return true;
@@ -195,25 +244,57 @@ class Scanner {
 
     private char peek(){
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private boolean isAtEnd () {
-        return current >= source.length();
+        return current >= limit && !fill();
+    }
+
+    // Reads in more of the source, false if there's no more to read
+    private boolean fill() {
+        if (reader == null) return false;
+        // Make room by dropping everything before the current token, and only grow if the token itself is that big
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            current -= start;
+            limit -= start;
+            start = 0;
+        }
+        if (limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+        try {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                reader.close();
+                reader = null;
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private char advance() {
         current ++;
-        return source.charAt(current - 1);
+        return buffer[current - 1];
     }
 
+    // Punctuation is interned like any name, so it never needs a String of its own either
     private void addToken(TokenType type){
-        addToken(type, null);
+        addToken(type, Names.intern(buffer, start, current), null);
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        addToken(type, new String(buffer, start, current - start), literal);
+    }
+
+    private void addToken(TokenType type, String lexeme, Object literal) {
+        this.type = type;
+        this.lexeme = lexeme;
+        this.literal = literal;
     }
 
     private boolean isDigit(char c){
@@ -221,8 +302,10 @@ class Scanner {
     }
 
     private char peekNext(){
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        while (current + 1 >= limit) {
+            if (!fill()) return '\0';
+        }
+        return buffer[current + 1];
     }
 
     private boolean isAlpha(char c) {
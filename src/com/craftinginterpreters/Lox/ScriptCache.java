@@ -0,0 +1,768 @@
+package com.craftinginterpreters.Lox;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The resolved, optimized tree of a script, saved so the next run can skip straight to running it
+ * Caches live in jlox's own directory ($XDG_CACHE_HOME/jlox, or ~/.cache/jlox), one per script named after a hash of
+ * its path, so nothing is left next to the scripts themselves.
+ * A cache is only used if it was written from the exact same source by the exact same build of everything that
+ * decides what ends up in it: the file starts with a SHA-256 of the compiled classes in FORMAT, and one of the source.
+ * It's only ever a shortcut. A cache that's out of date is quietly written again. One that's there but can't be read
+ * is reported on stderr, but failing to write one isn't, since a read-only home would then complain on every run.
+ * Either way the script is just parsed as usual.
+ *
+ * The format is the tree written out depth first, a tag per node followed by its fields, including what the Resolver
+ * filled in. Names and strings go in a table the first time they turn up and by index after that, and names are
+ * interned again as they're read back (see Names).
+ * */
+final class ScriptCache {
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    // The classes whose code decides what a .loxc holds, so any change to them makes every old cache out of date
+    // Lox picks the passes, the Optimizer folds through the Interpreter's isTruthy, isEqual and isArithmetic, and
+    // names are interned through Names as they're read back
+    private static final Class<?>[] FORMAT = {Lox.class, Scanner.class, Parser.class, Hoister.class, Resolver.class,
+            Optimizer.class, Interpreter.class, Names.class, Expr.class, Stmt.class, Token.class, TokenType.class,
+            ScriptCache.class};
+    // The hash of FORMAT, worked out the first time a cache is wanted
+    private static byte[] format;
+
+    private final Path source;
+    private final Path cache;
+    private final byte[] hash;
+
+    private ScriptCache(Path source, Path cache, byte[] hash) {
+        this.source = source;
+        this.cache = cache;
+        this.hash = hash;
+    }
+
+    private static Path directory() {
+        String home = System.getenv("XDG_CACHE_HOME");
+        if (home == null || home.isEmpty()) home = Paths.get(System.getProperty("user.home"), ".cache").toString();
+        return Paths.get(home, "jlox");
+    }
+
+    // The cache for a script, or null if there can't be one
+    static ScriptCache of(Path source) throws IOException {
+        try {
+            if (format == null) format = format();
+        } catch (IOException e) {
+            System.err.println("Not caching " + source + ", can't tell which build this is: " + e.getMessage());
+            return null;
+        }
+
+        MessageDigest digest = sha256();
+        // Streamed through, like the Scanner reads it, so a big script never has to fit in memory
+        try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest)) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {}
+        }
+        byte[] hash = digest.digest();
+
+        byte[] path = sha256().digest(source.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 16; i++) name.append(String.format("%02x", path[i]));
+        return new ScriptCache(source, directory().resolve(name + ".loxc"), hash);
+    }
+
+    private static byte[] format() throws IOException {
+        MessageDigest digest = sha256();
+        for (Class<?> type : FORMAT) digestClass(digest, type);
+        return digest.digest();
+    }
+
+    // The class file of the class and of every class declared in it, like each node in Expr and Stmt
+    private static void digestClass(MessageDigest digest, Class<?> type) throws IOException {
+        String name = type.getName();
+        try (InputStream in = type.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+            if (in == null) throw new IOException("no class file for " + name);
+            digest.update(in.readAllBytes());
+        }
+        Class<?>[] nested = type.getDeclaredClasses();
+        Arrays.sort(nested, Comparator.comparing(Class::getName));
+        for (Class<?> inner : nested) digestClass(digest, inner);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The cached tree, or null if there isn't a usable one
+    List<Stmt> load() {
+        if (!Files.isRegularFile(cache)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a cache file");
+            // Written by another build, or from an older version of the script: it's replaced once this one's parsed
+            if (!Arrays.equals(read(in, format.length), format) || !Arrays.equals(read(in, hash.length), hash)) {
+                return null;
+            }
+            return new Reader(in).statements();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read " + cache + ", parsing the script instead: " + e);
+            return null;
+        }
+    }
+
+    private static byte[] read(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    void store(List<Stmt> statements) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.write(format);
+            out.write(hash);
+            new Writer(out).statements(statements);
+            out.flush();
+
+            // Written to the side and moved into place, so another run never reads half a file
+            Files.createDirectories(cache.getParent());
+            Path temporary = Files.createTempFile(cache.getParent(), source.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporary, bytes.toByteArray());
+                Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException | RuntimeException e) {
+            // It still runs, just without a cache next time either
+        }
+    }
+
+    // Node tags. Expressions and statements get their own ranges so a bad file can't mix them up
+    private static final int NULL = 0;
+
+    private static final int TERNARY = 1;
+    private static final int ASSIGN = 2;
+    private static final int BINARY = 3;
+    private static final int CALL = 4;
+    private static final int GET = 5;
+    private static final int GROUPING = 6;
+    private static final int LAMBDA = 7;
+    private static final int LITERAL = 8;
+    private static final int LOGICAL = 9;
+    private static final int SET = 10;
+    private static final int THIS = 11;
+    private static final int SUPER = 12;
+    private static final int UNARY = 13;
+    private static final int VARIABLE = 14;
+
+    private static final int BLOCK = 32;
+    private static final int EXPRESSION = 33;
+    private static final int FUNCTION = 34;
+    private static final int CLASS = 35;
+    private static final int RETURN = 36;
+    private static final int IF = 37;
+    private static final int PRINT = 38;
+    private static final int VAR = 39;
+    private static final int WHILE = 40;
+
+    // Literal values
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void statements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) write(statement);
+        }
+
+        private void write(Stmt stmt) {
+            if (stmt == null) {
+                writeByte(NULL);
+                return;
+            }
+            stmt.accept(this);
+        }
+
+        private void write(Expr expr) {
+            if (expr == null) {
+                writeByte(NULL);
+                return;
+            }
+            expr.accept(this);
+        }
+
+        private void write(Token token) {
+            writeByte(token.type.ordinal());
+            writeString(token.lexeme);
+            writeValue(token.literal);
+            writeInt(token.line);
+        }
+
+        private void tokens(List<Token> tokens) {
+            writeInt(tokens.size());
+            for (Token token : tokens) write(token);
+        }
+
+        private void function(Stmt.Function function) {
+            write(function.name);
+            tokens(function.params);
+            statements(function.body);
+            writeBoolean(function.isMethod);
+            writeBoolean(function.captured);
+            captures(function);
+        }
+
+        // What the Resolver worked out the function captures, which a lambda's stand-in declaration has as well
+        private void captures(Stmt.Function function) {
+            writeInts(function.upvalues);
+            writeInts(function.capturedParams);
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                writeByte(NUMBER);
+                try {
+                    out.writeDouble((Double) value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else if (value instanceof String) {
+                writeByte(STRING);
+                writeString((String) value);
+            } else {
+                // Nothing else can be a literal, but if it ever is there's just no cache
+                throw new IllegalStateException("Can't cache a " + value.getClass().getSimpleName() + " literal");
+            }
+        }
+
+        private void writeString(String string) {
+            Integer index = strings.get(string);
+            if (index != null) {
+                writeInt(index);
+                return;
+            }
+            // A new one goes in as the next index, followed by its characters
+            writeInt(strings.size());
+            strings.put(string, strings.size());
+            writeInt(string.length());
+            try {
+                out.writeChars(string);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeByte(int value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeInt(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        private void writeInts(int[] values) {
+            writeInt(values.length);
+            for (int value : values) writeInt(value);
+        }
+
+        // Statements
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            writeByte(BLOCK);
+            statements(stmt.statements);
+            writeBoolean(stmt.sharesFrame);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            writeByte(EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            writeByte(FUNCTION);
+            function(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            writeByte(CLASS);
+            write(stmt.name);
+            write(stmt.superclass);
+            writeInt(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) function(method);
+            writeInt(stmt.staticMethods.size());
+            for (Stmt.Function method : stmt.staticMethods) function(method);
+            writeBoolean(stmt.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            writeByte(RETURN);
+            write(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            writeByte(IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            writeByte(PRINT);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            writeByte(VAR);
+            write(stmt.name);
+            write(stmt.initializer);
+            writeBoolean(stmt.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            writeByte(WHILE);
+            write(stmt.condition);
+            write(stmt.body);
+            write(stmt.increment);
+            return null;
+        }
+
+        // Expressions
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            writeByte(TERNARY);
+            write(expr.condition);
+            write(expr.left);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeByte(ASSIGN);
+            write(expr.name);
+            write(expr.value);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            writeBoolean(expr.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeByte(BINARY);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            writeBoolean(expr.arithmetic);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            writeByte(CALL);
+            write(expr.callee);
+            write(expr.paren);
+            writeInt(expr.arguments.size());
+            for (Expr argument : expr.arguments) write(argument);
+            writeBoolean(expr.isTailCall);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            writeByte(GET);
+            write(expr.object);
+            write(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeByte(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLambdaExpr(Expr.Lambda expr) {
+            writeByte(LAMBDA);
+            writeInt(expr.line);
+            tokens(expr.params);
+            statements(expr.body);
+            captures(expr.function);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeByte(LITERAL);
+            writeValue(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            writeByte(LOGICAL);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            writeByte(SET);
+            write(expr.object);
+            write(expr.name);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            writeByte(THIS);
+            write(expr.keyword);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            writeBoolean(expr.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            writeByte(SUPER);
+            write(expr.keyword);
+            write(expr.method);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            writeInt(expr.thisDepth);
+            writeInt(expr.thisSlot);
+            writeBoolean(expr.thisCaptured);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeByte(UNARY);
+            write(expr.operator);
+            write(expr.right);
+            writeBoolean(expr.arithmetic);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            writeByte(VARIABLE);
+            write(expr.name);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            writeBoolean(expr.captured);
+            return null;
+        }
+    }
+
+    // Reads back what Writer wrote, throwing if anything in it doesn't make sense
+    private static class Reader {
+        private static final TokenType[] TYPES = TokenType.values();
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+        // The interned copy of each of those that's been used as a lexeme
+        private final List<String> names = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int count = in.readInt();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) statements.add(statement());
+            return statements;
+        }
+
+        private Stmt statement() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case NULL: return null;
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(statements());
+                    block.sharesFrame = in.readBoolean();
+                    return block;
+                }
+                case EXPRESSION: return new Stmt.Expression(expression());
+                case FUNCTION: return function();
+                case CLASS: {
+                    Token name = token();
+                    Expr.Variable superclass = (Expr.Variable) expression();
+                    List<Stmt.Function> methods = functions();
+                    List<Stmt.Function> staticMethods = functions();
+                    Stmt.Class klass = new Stmt.Class(name, superclass, methods, staticMethods);
+                    klass.captured = in.readBoolean();
+                    return klass;
+                }
+                case RETURN: {
+                    Token keyword = token();
+                    return new Stmt.Return(keyword, expression());
+                }
+                case IF: {
+                    Expr condition = expression();
+                    Stmt thenBranch = statement();
+                    return new Stmt.If(condition, thenBranch, statement());
+                }
+                case PRINT: return new Stmt.Print(expression());
+                case VAR: {
+                    Token name = token();
+                    Stmt.Var var = new Stmt.Var(name, expression());
+                    var.captured = in.readBoolean();
+                    return var;
+                }
+                case WHILE: {
+                    Expr condition = expression();
+                    Stmt body = statement();
+                    return new Stmt.While(condition, body, expression());
+                }
+                default: throw new IOException("Bad statement tag " + tag);
+            }
+        }
+
+        private Expr expression() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case NULL: return null;
+                case TERNARY: {
+                    Expr condition = expression();
+                    Expr left = expression();
+                    return new Expr.Ternary(condition, left, expression());
+                }
+                case ASSIGN: {
+                    Token name = token();
+                    Expr.Assign assign = new Expr.Assign(name, expression());
+                    assign.depth = in.readInt();
+                    assign.slot = in.readInt();
+                    assign.captured = in.readBoolean();
+                    return assign;
+                }
+                case BINARY: {
+                    Expr left = expression();
+                    Token operator = token();
+                    Expr.Binary binary = new Expr.Binary(left, operator, expression());
+                    binary.arithmetic = in.readBoolean();
+                    return binary;
+                }
+                case CALL: {
+                    Expr callee = expression();
+                    Token paren = token();
+                    int count = in.readInt();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) arguments.add(expression());
+                    Expr.Call call = new Expr.Call(callee, paren, arguments);
+                    call.isTailCall = in.readBoolean();
+                    return call;
+                }
+                case GET: {
+                    Expr object = expression();
+                    return new Expr.Get(object, token());
+                }
+                case GROUPING: return new Expr.Grouping(expression());
+                case LAMBDA: {
+                    int line = in.readInt();
+                    List<Token> params = tokens();
+                    Expr.Lambda lambda = new Expr.Lambda(line, params, statements());
+                    lambda.function = new Stmt.Function(new Token(TokenType.IDENTIFIER, "Lambda", null, line),
+                            params, lambda.body);
+                    captures(lambda.function);
+                    return lambda;
+                }
+                case LITERAL: return new Expr.Literal(value());
+                case LOGICAL: {
+                    Expr left = expression();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expression());
+                }
+                case SET: {
+                    Expr object = expression();
+                    Token name = token();
+                    return new Expr.Set(object, name, expression());
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.depth = in.readInt();
+                    expr.slot = in.readInt();
+                    expr.captured = in.readBoolean();
+                    return expr;
+                }
+                case SUPER: {
+                    Token keyword = token();
+                    Expr.Super expr = new Expr.Super(keyword, token());
+                    expr.depth = in.readInt();
+                    expr.slot = in.readInt();
+                    expr.thisDepth = in.readInt();
+                    expr.thisSlot = in.readInt();
+                    expr.thisCaptured = in.readBoolean();
+                    return expr;
+                }
+                case UNARY: {
+                    Token operator = token();
+                    Expr.Unary unary = new Expr.Unary(operator, expression());
+                    unary.arithmetic = in.readBoolean();
+                    return unary;
+                }
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.depth = in.readInt();
+                    expr.slot = in.readInt();
+                    expr.captured = in.readBoolean();
+                    return expr;
+                }
+                default: throw new IOException("Bad expression tag " + tag);
+            }
+        }
+
+        private Stmt.Function function() throws IOException {
+            Token name = token();
+            List<Token> params = tokens();
+            Stmt.Function function = new Stmt.Function(name, params, statements());
+            function.isMethod = in.readBoolean();
+            function.captured = in.readBoolean();
+            captures(function);
+            return function;
+        }
+
+        private void captures(Stmt.Function function) throws IOException {
+            function.upvalues = readInts();
+            function.capturedParams = readInts();
+        }
+
+        private int[] readInts() throws IOException {
+            int[] values = new int[in.readInt()];
+            for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+            return values;
+        }
+
+        private List<Stmt.Function> functions() throws IOException {
+            int count = in.readInt();
+            List<Stmt.Function> functions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) functions.add(function());
+            return functions;
+        }
+
+        private Token token() throws IOException {
+            TokenType type = TYPES[in.readUnsignedByte()];
+            String lexeme = name();
+            Object literal = value();
+            return new Token(type, lexeme, literal, in.readInt());
+        }
+
+        private List<Token> tokens() throws IOException {
+            int count = in.readInt();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) tokens.add(token());
+            return tokens;
+        }
+
+        private Object value() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return in.readDouble();
+                case STRING: return string();
+                default: throw new IOException("Bad literal tag " + tag);
+            }
+        }
+
+        private String string() throws IOException {
+            return strings.get(stringIndex());
+        }
+
+        // Lexemes have to be the interned copies, the same as the Scanner would have given
+        private String name() throws IOException {
+            int index = stringIndex();
+            String name = names.get(index);
+            if (name == null) {
+                name = Names.intern(strings.get(index));
+                names.set(index, name);
+            }
+            return name;
+        }
+
+        private int stringIndex() throws IOException {
+            int index = in.readInt();
+            if (index < strings.size()) return index;
+            if (index != strings.size()) throw new IOException("Bad string index " + index);
+
+            char[] chars = new char[in.readInt()];
+            for (int i = 0; i < chars.length; i++) chars[i] = in.readChar();
+            strings.add(new String(chars));
+            names.add(null);
+            return index;
+        }
+    }
+}
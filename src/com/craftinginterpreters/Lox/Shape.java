@@ -0,0 +1,46 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/** The layout of an instance: which slot of its fields array each field lives in
+ * Every class has an empty root shape, and adding a field moves an instance along to the shape with that field
+ * appended. Those transitions are kept, so every instance that gets the same fields in the same order ends up sharing
+ * one Shape instead of each carrying its own map of names. A shape only ever belongs to one class, which is what lets
+ * a PropertyCache remember methods as well as fields by shape alone.
+ * */
+final class Shape {
+    final LoxClass klass;
+    final int size;
+    private final Map<String, Integer> slots;
+    // Both keyed by identity, field names are interned. See Names
+    private final Map<String, Shape> transitions = new IdentityHashMap<>();
+
+    Shape(LoxClass klass) {
+        this(klass, new IdentityHashMap<>());
+    }
+
+    private Shape(LoxClass klass, Map<String, Integer> slots) {
+        this.klass = klass;
+        this.slots = slots;
+        this.size = slots.size();
+    }
+
+    // -1 if instances of this shape don't have the field
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // The shape reached by adding a field, which always goes in the next slot
+    Shape with(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<String, Integer> nextSlots = new IdentityHashMap<>(slots);
+            nextSlots.put(name, size);
+            next = new Shape(klass, nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
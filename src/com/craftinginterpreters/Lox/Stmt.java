@@ -24,6 +24,9 @@ abstract class Stmt {
         }
 
     final List<Stmt> statements;
+
+    // Filled in after parsing
+    boolean sharesFrame;
  }
  static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -50,6 +53,15 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    // Filled in after parsing
+    boolean isMethod;
+    int calls;
+    CompiledBody compiled;
+    LazyBody lazy;
+    int[] upvalues;
+    int[] capturedParams;
+    boolean captured;
  }
  static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods) {
@@ -67,6 +79,9 @@ abstract class Stmt {
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
     final List<Stmt.Function> staticMethods;
+
+    // Filled in after parsing
+    boolean captured;
  }
  static class Return extends Stmt {
     Return(Token keyword, Expr value) {
@@ -119,11 +134,15 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    // Filled in after parsing
+    boolean captured;
  }
  static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+    While(Expr condition, Stmt body, Expr increment) {
         this.condition = condition;
         this.body = body;
+        this.increment = increment;
     }
 
     <R> R accept(Visitor<R> visitor){
@@ -132,6 +151,7 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+    final Expr increment;
  }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,303 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Executable statement nodes built once from the resolved tree by the NodeCompiler
+ * Like the Interpreter, execute() hands back how the statement completed rather than throwing to return from a
+ * function. See Completion
+ * */
+abstract class StmtNode {
+    abstract Object execute(Environment frame);
+
+    static Object executeAll(StmtNode[] statements, Environment frame) {
+        for (StmtNode statement : statements) {
+            Object completion = statement.execute(frame);
+            if (completion != null) return completion;
+        }
+        return null;
+    }
+
+    static class Block extends StmtNode {
+        private final StmtNode[] statements;
+
+        Block(StmtNode[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            return executeAll(statements, new Environment(frame));
+        }
+    }
+
+    // A block whose locals go on the end of the frame it's in, see Resolver.visitBlockStmt
+    static class SharedBlock extends StmtNode {
+        private final StmtNode[] statements;
+        // Where to count the runs for --stats, null without it
+        private final Interpreter stats;
+
+        SharedBlock(StmtNode[] statements, Interpreter stats) {
+            this.statements = statements;
+            this.stats = stats;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            if (stats != null) stats.sharedBlocks++;
+            int size = frame.size();
+            Object completion = executeAll(statements, frame);
+            frame.truncate(size);
+            return completion;
+        }
+    }
+
+    static class Expression extends StmtNode {
+        private final ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            expression.evaluate(frame);
+            return null;
+        }
+    }
+
+    // Interactive mode echoes every expression statement and keeps it around as '_'
+    static class Echo extends StmtNode {
+        private final Environment globals;
+        private final ExprNode expression;
+
+        Echo(Environment globals, ExprNode expression) {
+            this.globals = globals;
+            this.expression = expression;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            Object value = expression.evaluate(frame);
+            System.out.println(Interpreter.stringify(value));
+            globals.define("_", value);
+            return null;
+        }
+    }
+
+    static class Print extends StmtNode {
+        private final ExprNode expression;
+
+        Print(ExprNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            System.out.println(Interpreter.stringify(expression.evaluate(frame)));
+            return null;
+        }
+    }
+
+    static class Var extends StmtNode {
+        private final String name;
+        private final ExprNode initializer;
+        private final boolean captured;
+
+        Var(String name, ExprNode initializer, boolean captured) {
+            this.name = name;
+            this.initializer = initializer;
+            this.captured = captured;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            if (captured) {
+                // In its Cell before the initializer runs, see Interpreter.visitVarStmt
+                Cell cell = new Cell(null);
+                frame.define(cell);
+                if (initializer != null) cell.value = initializer.evaluate(frame);
+                return null;
+            }
+            Object value = null;
+            if (initializer != null) value = initializer.evaluate(frame);
+            frame.define(name, value);
+            return null;
+        }
+    }
+
+    static class Function extends StmtNode {
+        private final Stmt.Function declaration;
+        private final StmtNode[] body;
+
+        Function(Stmt.Function declaration, StmtNode[] body) {
+            this.declaration = declaration;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            if (declaration.captured) {
+                Cell cell = new Cell(null);
+                frame.define(cell);
+                cell.value = new NodeFunction(declaration, body, frame.capture(declaration.upvalues), false);
+                return null;
+            }
+            frame.define(declaration.name.lexeme,
+                    new NodeFunction(declaration, body, frame.capture(declaration.upvalues), false));
+            return null;
+        }
+    }
+
+    static class Class extends StmtNode {
+        private final Token name;
+        private final boolean captured;
+        private final ExprNode superclass;
+        private final Token superclassName;
+        private final Stmt.Function[] methods;
+        private final StmtNode[][] methodBodies;
+        private final Stmt.Function[] staticMethods;
+        private final StmtNode[][] staticBodies;
+
+        Class(Token name, boolean captured, ExprNode superclass, Token superclassName,
+              Stmt.Function[] methods, StmtNode[][] methodBodies,
+              Stmt.Function[] staticMethods, StmtNode[][] staticBodies) {
+            this.name = name;
+            this.captured = captured;
+            this.superclass = superclass;
+            this.superclassName = superclassName;
+            this.methods = methods;
+            this.methodBodies = methodBodies;
+            this.staticMethods = staticMethods;
+            this.staticBodies = staticBodies;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            Object parent = null;
+            Environment environment = frame;
+            if (superclass != null) {
+                parent = superclass.evaluate(frame);
+                if (!(parent instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName,
+                            "Superclass must be a class.");
+                }
+            }
+            // See Interpreter.visitClassStmt
+            Cell cell = null;
+            if (captured) {
+                cell = new Cell(null);
+                frame.define(cell);
+            }
+            if (superclass != null) {
+                environment = new Environment(frame);
+                environment.define(new Cell(parent));
+            }
+
+            Map<String, LoxFunction> methodTable = new HashMap<>();
+            for (int i = 0; i < methods.length; i++) {
+                String methodName = methods[i].name.lexeme;
+                methodTable.put(methodName, new NodeFunction(methods[i], methodBodies[i],
+                        environment.capture(methods[i].upvalues), methodName.equals("init")));
+            }
+
+            Map<String, LoxFunction> staticTable = new HashMap<>();
+            for (int i = 0; i < staticMethods.length; i++) {
+                staticTable.put(staticMethods[i].name.lexeme,
+                        new NodeFunction(staticMethods[i], staticBodies[i],
+                                environment.capture(staticMethods[i].upvalues), false));
+            }
+
+            LoxClass klass = new LoxClass(name.lexeme, (LoxClass) parent, methodTable, staticTable);
+            if (cell != null) cell.value = klass;
+            else frame.define(name.lexeme, klass);
+            return null;
+        }
+    }
+
+    static class If extends StmtNode {
+        private final ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            if (condition.evaluateCondition(frame)) {
+                return thenBranch.execute(frame);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(frame);
+            }
+            return null;
+        }
+    }
+
+    static class While extends StmtNode {
+        private final ExprNode condition;
+        private final StmtNode body;
+        private final ExprNode increment;
+
+        While(ExprNode condition, StmtNode body, ExprNode increment) {
+            this.condition = condition;
+            this.body = body;
+            this.increment = increment;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            while (condition.evaluateCondition(frame)) {
+                Object completion = body.execute(frame);
+                if (completion != null) return completion;
+                if (increment != null) increment.evaluate(frame);
+            }
+            return null;
+        }
+    }
+
+    // A loop whose body is a block that needs an environment, which one does for every time round since closures only
+    // ever take Cells with them
+    static class ScopedWhile extends StmtNode {
+        private final ExprNode condition;
+        private final StmtNode[] body;
+        private final ExprNode increment;
+
+        ScopedWhile(ExprNode condition, StmtNode[] body, ExprNode increment) {
+            this.condition = condition;
+            this.body = body;
+            this.increment = increment;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            Environment scope = null;
+            while (condition.evaluateCondition(frame)) {
+                if (scope == null) scope = new Environment(frame);
+                else scope.clear();
+                Object completion = executeAll(body, scope);
+                if (completion != null) return completion;
+                if (increment != null) increment.evaluate(frame);
+            }
+            return null;
+        }
+    }
+
+    static class Return extends StmtNode {
+        private final ExprNode value;
+
+        Return(ExprNode value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment frame) {
+            if (value == null) return Completion.RETURN_NIL;
+            Object result = value.evaluate(frame);
+            return result == null ? Completion.RETURN_NIL : result;
+        }
+    }
+}
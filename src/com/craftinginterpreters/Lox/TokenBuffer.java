@@ -0,0 +1,53 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.Arrays;
+
+/** Tokens kept back to be parsed later, in parallel arrays rather than as Token objects
+ * Filled in by the Parser as it skips over a function body with --lazy, then handed back to a Parser as its source
+ * when the body is needed. See LazyBody.
+ * */
+final class TokenBuffer implements TokenSource {
+    private TokenType[] types = new TokenType[16];
+    private String[] lexemes = new String[16];
+    private Object[] literals = new Object[16];
+    private int[] lines = new int[16];
+    private int count = 0;
+    // Reading back: the token nextToken() last moved to
+    private int current = -1;
+
+    void add(TokenType type, String lexeme, Object literal, int line) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            lexemes = Arrays.copyOf(lexemes, count * 2);
+            literals = Arrays.copyOf(literals, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        types[count] = type;
+        lexemes[count] = lexeme;
+        literals[count] = literal;
+        lines[count] = line;
+        count++;
+    }
+
+    @Override
+    public TokenType nextToken() {
+        if (current < count) current++;
+        return current < count ? types[current] : TokenType.EOF;
+    }
+
+    @Override
+    public String lexeme() {
+        return current < count ? lexemes[current] : "";
+    }
+
+    @Override
+    public Object literal() {
+        return current < count ? literals[current] : null;
+    }
+
+    // The end of the buffer is on the line of its last token
+    @Override
+    public int line() {
+        return lines[Math.min(current, count - 1)];
+    }
+}
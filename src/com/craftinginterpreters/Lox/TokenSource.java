@@ -0,0 +1,12 @@
+package com.craftinginterpreters.Lox;
+
+// Where the Parser gets its tokens: the Scanner, or the tokens of a function body kept back by --lazy (see LazyBody)
+interface TokenSource {
+    // Moves on to the next token, and EOF from then on once there are no more
+    TokenType nextToken();
+
+    // The token nextToken() just moved to
+    String lexeme();
+    Object literal();
+    int line();
+}
@@ -0,0 +1,528 @@
+package com.craftinginterpreters.Lox;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Stack based virtual machine for the output of the Compiler
+ * An alternative to the tree-walking Interpreter with the same semantics: run with `jlox --vm`.
+ * */
+class VM {
+    private static final int FRAMES_MAX = 10000;
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        // Index of the frame's slot zero on the stack
+        int base;
+    }
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    // Keyed by identity, names are all interned. See Names
+    final Map<String, Object> globals = new IdentityHashMap<>();
+    // Upvalues still pointing at the stack, sorted by slot with the highest first
+    private ObjUpvalue openUpvalues = null;
+
+    VM() {
+        globals.putAll(Globals.natives);
+    }
+
+    void interpret(ObjFunction script) {
+        ObjClosure closure = new ObjClosure(script);
+        push(closure);
+        try {
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, sp, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        List<Object> constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT:
+                    push(constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)));
+                    ip += 2;
+                    break;
+                case OpCode.NIL: push(null); break;
+                case OpCode.TRUE: push(true); break;
+                case OpCode.FALSE: push(false); break;
+                case OpCode.POP: stack[--sp] = null; break;
+                case OpCode.GET_LOCAL:
+                    push(stack[frame.base + (code[ip++] & 0xff)]);
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[frame.base + (code[ip++] & 0xff)] = stack[sp - 1];
+                    break;
+                case OpCode.GET_GLOBAL: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + name + "'.");
+                    }
+                    push(value);
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    globals.put(name, pop());
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    if (!globals.containsKey(name)) {
+                        frame.ip = ip;
+                        throw error("Undefined variable'" + name + "'.");
+                    }
+                    globals.put(name, stack[sp - 1]);
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    push(upvalue.slot == -1 ? upvalue.closed : stack[upvalue.slot]);
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot == -1) {
+                        upvalue.closed = stack[sp - 1];
+                    } else {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    frame.ip = ip;
+                    stack[sp - 1] = getProperty(stack[sp - 1], name);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    Object object = stack[sp - 2];
+                    if (object instanceof ObjClass) {
+                        frame.ip = ip;
+                        throw error("Cannot assign class attributes currently.");
+                    }
+                    if (!(object instanceof ObjInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+                    Object value = pop();
+                    ((ObjInstance) object).fields.put(name, value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    ObjClass superclass = (ObjClass) pop();
+                    ObjClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new ObjBoundMethod(stack[sp - 1], method);
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object b = pop();
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object b = pop();
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.GREATER:
+                case OpCode.GREATER_EQUAL:
+                case OpCode.LESS:
+                case OpCode.LESS_EQUAL:
+                case OpCode.SUBTRACT:
+                case OpCode.MULTIPLY:
+                case OpCode.DIVIDE: {
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    if (!(a instanceof Double) || !(b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    sp--;
+                    stack[sp] = null;
+                    stack[sp - 1] = arithmetic(code[ip - 1], (double) a, (double) b);
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[sp - 2] = (double) a + (double) b;
+                    } else if (Rope.isString(a) && Rope.isString(b)) {
+                        stack[sp - 2] = Rope.concat(a, b);
+                    } else {
+                        frame.ip = ip;
+                        throw error("Operands must be two numbers or two strings");
+                    }
+                    stack[--sp] = null;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE:
+                    if (!(stack[sp - 1] instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(double) stack[sp - 1];
+                    break;
+                case OpCode.PRINT:
+                    System.out.println(Interpreter.stringify(pop()));
+                    break;
+                case OpCode.ECHO: {
+                    Object value = pop();
+                    System.out.println(Interpreter.stringify(value));
+                    globals.put("_", value);
+                    break;
+                }
+                case OpCode.JUMP:
+                    ip += ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (!Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    }
+                    ip += 2;
+                    break;
+                case OpCode.LOOP:
+                    ip -= ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    break;
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(stack[sp - argCount - 1], argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.INVOKE: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    invoke(name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.SUPER_INVOKE: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    ObjClass superclass = (ObjClass) pop();
+                    ObjClosure method = superclass.methods.get(name);
+                    if (method == null) throw error("Undefined property '" + name + "'.");
+                    call(method, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    ObjFunction function = (ObjFunction) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    ObjClosure closure = new ObjClosure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] != 0;
+                        int index = code[ip++] & 0xff;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(frame.base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    push(closure);
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = pop();
+                    closeUpvalues(frame.base);
+                    frameCount--;
+                    Arrays.fill(stack, frame.base, sp, null);
+                    sp = frame.base;
+                    if (frameCount == 0) return;
+
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.CLASS: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    push(new ObjClass(name));
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    Object superclass = stack[sp - 2];
+                    if (!(superclass instanceof ObjClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+                    ObjClass subclass = (ObjClass) pop();
+                    subclass.methods.putAll(((ObjClass) superclass).methods);
+                    subclass.staticMethods.putAll(((ObjClass) superclass).staticMethods);
+                    subclass.initializer = ((ObjClass) superclass).initializer;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    ObjClosure method = (ObjClosure) pop();
+                    ObjClass klass = (ObjClass) stack[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    break;
+                }
+                case OpCode.STATIC_METHOD: {
+                    String name = (String) constants.get(((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    ObjClosure method = (ObjClosure) pop();
+                    ((ObjClass) stack[sp - 1]).staticMethods.put(name, method);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+            }
+        }
+    }
+
+    private static Object arithmetic(byte op, double a, double b) {
+        switch (op) {
+            case OpCode.GREATER: return a > b;
+            case OpCode.GREATER_EQUAL: return a >= b;
+            case OpCode.LESS: return a < b;
+            case OpCode.LESS_EQUAL: return a <= b;
+            case OpCode.SUBTRACT: return a - b;
+            case OpCode.MULTIPLY: return a * b;
+            case OpCode.DIVIDE: return a / b;
+        }
+        // Unreachable
+        return null;
+    }
+
+    // Calls
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure) callee, argCount);
+        } else if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass) callee;
+            stack[sp - argCount - 1] = new ObjInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw error("Expected0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof LoxCallable) {
+            callNative((LoxCallable) callee, argCount);
+        } else {
+            throw error("Can only call functions and classes");
+        }
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected" + closure.function.arity + " arguments but got " + argCount + ".");
+        }
+        if (frameCount > 0) {
+            CallFrame caller = frames[frameCount - 1];
+            // A tail call: the caller returns whatever this call does as soon as it's back, so the callee can have
+            // the caller's frame instead of one of its own, and tail recursion never reaches FRAMES_MAX. The
+            // callee and its arguments move down to the caller's slot zero
+            if (caller.closure.function.chunk.code[caller.ip] == OpCode.RETURN) {
+                closeUpvalues(caller.base);
+                int callee = sp - argCount - 1;
+                System.arraycopy(stack, callee, stack, caller.base, argCount + 1);
+                Arrays.fill(stack, caller.base + argCount + 1, sp, null);
+                sp = caller.base + argCount + 1;
+                caller.closure = closure;
+                caller.ip = 0;
+                return;
+            }
+        }
+        if (frameCount == FRAMES_MAX) {
+            throw error("Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+    }
+
+    private void callNative(LoxCallable function, int argCount) {
+        if (argCount != function.arity()) {
+            throw error("Expected" + function.arity() + " arguments but got " + argCount + ".");
+        }
+        int first = sp - argCount;
+        Object result;
+        try {
+            if (argCount <= 3) {
+                result = LoxCallable.dispatch(function, null, argCount,
+                        argCount > 0 ? stack[first] : null,
+                        argCount > 1 ? stack[first + 1] : null,
+                        argCount > 2 ? stack[first + 2] : null);
+            } else {
+                result = function.call(null, Arrays.copyOfRange(stack, first, sp));
+            }
+        } catch (NativeFunctionError err) {
+            throw error(err.message);
+        }
+        Arrays.fill(stack, sp - argCount - 1, sp, null);
+        sp -= argCount + 1;
+        push(result);
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[sp - argCount - 1];
+        if (receiver instanceof ObjInstance) {
+            ObjInstance instance = (ObjInstance) receiver;
+            // A field holding something callable shadows any method of the same name
+            if (instance.fields.containsKey(name)) {
+                Object value = instance.fields.get(name);
+                stack[sp - argCount - 1] = value;
+                callValue(value, argCount);
+                return;
+            }
+            ObjClosure method = instance.klass.methods.get(name);
+            if (method == null) throw error("Undefined property '" + name + "'.");
+            call(method, argCount);
+            return;
+        }
+        // Static methods don't get a receiver, the slot holds the method itself instead
+        Object method = getProperty(receiver, name);
+        stack[sp - argCount - 1] = method;
+        callValue(method, argCount);
+    }
+
+    private Object getProperty(Object object, String name) {
+        if (object instanceof ObjInstance) {
+            ObjInstance instance = (ObjInstance) object;
+            if (instance.fields.containsKey(name)) {
+                return instance.fields.get(name);
+            }
+            ObjClosure method = instance.klass.methods.get(name);
+            if (method != null) return new ObjBoundMethod(instance, method);
+            throw error("Undefined property '" + name + "'.");
+        }
+        if (object instanceof ObjClass) {
+            ObjClass klass = (ObjClass) object;
+            ObjClosure method = klass.staticMethods.get(name);
+            if (method != null) return method;
+            throw error("Static method '" + name +
+                    "' could not be found on class " + klass.name + "'");
+        }
+        throw error("Only instances have properties.");
+    }
+
+    // Upvalues
+
+    private ObjUpvalue captureUpvalue(int slot) {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    // Stack
+
+    private void push(Object value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.lines[frame.ip - 1];
+        return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+    }
+}
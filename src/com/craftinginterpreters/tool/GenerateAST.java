@@ -17,30 +17,30 @@ public class GenerateAST {
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
                 "Ternary: Expr condition, Expr left, Expr right",
-                "Assign : Token name, Expr value",
-                "Binary : Expr left, Token operator, Expr right",
-                "Call : Expr callee, Token paren, List<Expr> arguments",
-                "Get : Expr object, Token name",
+                "Assign : Token name, Expr value | int depth, int slot, boolean captured, Cell global",
+                "Binary : Expr left, Token operator, Expr right | boolean arithmetic",
+                "Call : Expr callee, Token paren, List<Expr> arguments | boolean isTailCall",
+                "Get : Expr object, Token name | PropertyCache cache = new PropertyCache()",
                 "Grouping : Expr expression",
-                "Lambda : int line, List<Token> params, List<Stmt> body",
+                "Lambda : int line, List<Token> params, List<Stmt> body | LazyBody lazy, Stmt.Function function",
                 "Literal : Object value",
                 "Logical : Expr left, Token operator, Expr right",
-                "Set : Expr object, Token name, Expr value",
-                "This : Token keyword",
-                "Super : Token keyword, Token method",
-                "Unary : Token operator, Expr right",
-                "Variable : Token name"
+                "Set : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+                "This : Token keyword | int depth, int slot, boolean captured",
+                "Super : Token keyword, Token method | int depth, int slot, int thisDepth, int thisSlot, boolean thisCaptured",
+                "Unary : Token operator, Expr right | boolean arithmetic",
+                "Variable : Token name | int depth, int slot, boolean captured, Cell global"
         ));
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block : List<Stmt> statements",
+                "Block : List<Stmt> statements | boolean sharesFrame",
                 "Expression : Expr expression",
-                "Function : Token name, List<Token> params, List<Stmt> body",
-                "Class : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods",
+                "Function : Token name, List<Token> params, List<Stmt> body | boolean isMethod, int calls, CompiledBody compiled, LazyBody lazy, int[] upvalues, int[] capturedParams, boolean captured",
+                "Class : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> staticMethods | boolean captured",
                 "Return : Token keyword, Expr value",
                 "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print : Expr expression",
-                "Var : Token name, Expr initializer",
-                "While : Expr condition, Stmt body"
+                "Var : Token name, Expr initializer | boolean captured",
+                "While : Expr condition, Stmt body, Expr increment"
         ));
     }
 
@@ -89,6 +89,13 @@ public class GenerateAST {
     private static void defineType(
             PrintWriter writer, String baseName,
             String className, String fieldList) {
+        // Anything after a '|' is filled in by the Resolver rather than the Parser, so it's left out of the
+        // constructor and isn't final
+        String resolvedList = null;
+        if (fieldList.contains("|")) {
+            resolvedList = fieldList.split("\\|")[1].trim();
+            fieldList = fieldList.split("\\|")[0].trim();
+        }
 
         writer.println(" static class " + className + " extends " +
                 baseName + " {"
@@ -117,6 +124,23 @@ public class GenerateAST {
         for (String field: fields) {
             writer.println("    final " + field + ";");
         }
+        if (resolvedList != null) {
+            writer.println();
+            if (resolvedList.contains("int depth")) {
+                writer.println("    // Set by the Resolver: depth -1 is a global, Resolver.UPVALUE one of the function's upvalues");
+            } else if (!resolvedList.equals("boolean arithmetic")) {
+                writer.println("    // Filled in after parsing");
+            }
+            for (String field : resolvedList.split(", ")) {
+                String name = field.split(" ")[1];
+                if (name.equals("global")) {
+                    writer.println("    // The global's Cell, once it's been looked up the first time. See Environment.globalCell");
+                } else if (name.equals("arithmetic")) {
+                    writer.println("    // Sure to come out a number, set by the Optimizer. See Interpreter.isArithmetic");
+                }
+                writer.println("    " + field + (name.equals("depth") ? " = -1;" : ";"));
+            }
+        }
         writer.println(" }");
     }
 
@@ -0,0 +1,67 @@
+#!/bin/sh
+# Runs every test/*.lox on each engine and checks its output against the comments in it:
+#   // expect: <line>                  a line the script prints, in order
+#   // expect runtime error: <message> the run stops with this error (exit code 70)
+#   // expect error: <message>         the script doesn't compile (exit code 65)
+#   // skip: <flags>                   leave out the engine run with these flags (one line for each)
+# Usage: test/run.sh [test names...]
+cd "$(dirname "$0")/.." || exit 1
+
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+javac -d "$classes" $(find src -name '*.java') || exit 1
+
+engines="
+--vm
+--nodes
+--jit
+--lazy
+--lazy --jit
+--lazy --check-bodies
+--low-alloc"
+
+if [ $# -gt 0 ]; then
+    tests=$(for name in "$@"; do echo "test/${name%.lox}.lox"; done)
+else
+    tests=$(ls test/*.lox)
+fi
+
+passed=0
+failed=0
+for test in $tests; do
+    expected=$(sed -n 's|.*// expect: \{0,1\}\(.*\)$|\1|p' "$test")
+    runtime=$(sed -n 's|.*// expect runtime error: \(.*\)$|\1|p' "$test")
+    compile=$(sed -n 's|.*// expect error: \(.*\)$|\1|p' "$test")
+    skip=$(sed -n 's|.*// skip: \(.*\)$|\1|p' "$test")
+    status=0
+    [ -n "$runtime" ] && status=70
+    [ -n "$compile" ] && status=65
+
+    # The first line of engines is the tree-walker, which takes no flags
+    echo "$engines" | while IFS= read -r flags; do
+        [ -n "$flags" ] && echo "$skip" | grep -qxF -- "$flags" && continue
+        actual=$(java -cp "$classes" com.craftinginterpreters.Lox.Lox --no-cache $flags "$test" 2>"$classes/stderr")
+        code=$?
+        problem=""
+        if [ "$actual" != "$expected" ]; then
+            problem="output was
+$actual"
+        elif [ $code -ne $status ]; then
+            problem="exit code was $code, not $status"
+        elif [ -n "$runtime$compile" ] && ! grep -qF "$runtime$compile" "$classes/stderr"; then
+            problem="expected error '$runtime$compile', got
+$(cat "$classes/stderr")"
+        fi
+        if [ -n "$problem" ]; then
+            echo "FAIL $test ${flags:-(tree)}: $problem"
+            echo fail >> "$classes/failures"
+        fi
+        echo run >> "$classes/runs"
+    done
+done
+
+runs=$(wc -l < "$classes/runs")
+failures=0
+[ -f "$classes/failures" ] && failures=$(wc -l < "$classes/failures")
+echo "$((runs - failures)) passed, $failures failed"
+[ "$failures" -eq 0 ]